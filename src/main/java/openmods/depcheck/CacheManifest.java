@@ -0,0 +1,62 @@
+package openmods.depcheck;
+
+import java.io.*;
+import java.util.List;
+
+import com.google.common.base.Charsets;
+import com.google.common.collect.Lists;
+import com.google.gson.Gson;
+import com.google.gson.GsonBuilder;
+import com.google.gson.annotations.SerializedName;
+
+public class CacheManifest {
+
+    private static final Gson GSON = new GsonBuilder().setPrettyPrinting().create();
+
+    public static class VersionEntry {
+        public String version;
+
+        public String file;
+
+        public long size;
+
+        public long lastModified;
+
+        public String hash;
+    }
+
+    public static class ModEntry {
+        public String mod;
+
+        @SerializedName("package")
+        public String pkgPrefix;
+
+        public String segment;
+
+        public long segmentSize;
+
+        public long segmentLastModified;
+
+        public List<VersionEntry> versions = Lists.newArrayList();
+
+        public boolean isSegmentValid(File segmentFile) {
+            return segmentFile.isFile() && segmentFile.length() == segmentSize && segmentFile.lastModified() == segmentLastModified;
+        }
+    }
+
+    public List<ModEntry> mods = Lists.newArrayList();
+
+    public static CacheManifest read(File file) throws IOException {
+        try (InputStream input = new FileInputStream(file);
+                Reader reader = new InputStreamReader(input, Charsets.UTF_8)) {
+            return GSON.fromJson(reader, CacheManifest.class);
+        }
+    }
+
+    public void write(File file) throws IOException {
+        try (OutputStream output = new FileOutputStream(file);
+                Writer writer = new OutputStreamWriter(output, Charsets.UTF_8)) {
+            GSON.toJson(this, writer);
+        }
+    }
+}
@@ -2,29 +2,114 @@ package openmods.depcheck;
 
 import java.io.File;
 import java.util.List;
+import java.util.Optional;
+import java.util.Set;
+import java.util.stream.Collectors;
+
+import openmods.depcheck.utils.JdkClassIndex;
+import openmods.depcheck.utils.LibClassChecker;
+import openmods.depcheck.utils.Metrics;
+import openmods.depcheck.utils.PackagePrefilter;
 
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+import com.google.common.base.Splitter;
+
 public class DependencyChecker {
 
     private static final Logger logger = LoggerFactory.getLogger(DependencyChecker.class);
 
-    public static void main(String[] args) {
+    private static final int THREADS = Integer.getInteger("depcheck.threads", 1);
+
+    private static final TargetParser.ExtractionMode EXTRACTION_MODE = TargetParser.ExtractionMode.valueOf(System.getProperty("depcheck.extraction", "asm").toUpperCase());
+
+    private static final boolean PREFILTER = Boolean.parseBoolean(System.getProperty("depcheck.prefilter", "true"));
+
+    private static final boolean SPLIT_REPORT = Boolean.getBoolean("depcheck.splitReport");
+
+    private static final List<ResultExporter.Format> EXPORT_FORMATS = Splitter.on(',').omitEmptyStrings().trimResults()
+            .splitToList(System.getProperty("depcheck.export", ""))
+            .stream().map(ResultExporter.Format::fromId).collect(Collectors.toList());
+
+    private static final boolean WATCH = Boolean.getBoolean("depcheck.watch");
+
+    private static final int SERVER_PORT = Integer.getInteger("depcheck.serverPort", 0);
+
+    private static final String JDK_HOME = System.getProperty("depcheck.jdk", System.getProperty("java.home"));
+
+    private static PackagePrefilter createPrefilter(SourceDependencies availableDependencies) {
+        if (!PREFILTER)
+            return null;
+
+        final Set<String> prefixes = availableDependencies.getAllMods().stream().map(mod -> mod.pkgPrefix).collect(Collectors.toSet());
+        return new PackagePrefilter(prefixes);
+    }
+
+    static TargetParser createTargetParser(File topDir, SourceDependencies availableDependencies) {
+        return new TargetParser(topDir, THREADS, EXTRACTION_MODE, createPrefilter(availableDependencies));
+    }
+
+    static void loadJdkIndex(SourceParser depWalker) {
+        final Optional<JdkClassIndex> jdkIndex;
+        final Metrics.Phase phase = Metrics.start("jdk index load");
+        try {
+            jdkIndex = JdkClassIndex.loadOrCreate(new File(JDK_HOME), depWalker.getCacheDir());
+        } finally {
+            phase.end();
+        }
+        if (!jdkIndex.isPresent())
+            logger.warn("JDK index not available, falling back to reflection on running JVM");
+        LibClassChecker.setJdkIndex(jdkIndex.orElse(null));
+    }
+
+    static void writeOutputs(File topDir, SourceDependencies availableDependencies, List<DependencyResolveResult> results) {
+        if (SPLIT_REPORT)
+            new ResultPrinter().printSplit(new File(topDir, "report"), availableDependencies, results, THREADS);
+        else
+            new ResultPrinter().print(new File(topDir, "output.html"), availableDependencies, results);
+
+        for (ResultExporter.Format format : EXPORT_FORMATS)
+            new ResultExporter().export(topDir, format, availableDependencies, results);
+
+        Metrics.printSummary(logger);
+        Metrics.writeJson(new File(topDir, "metrics.json"));
+    }
+
+    public static void main(String[] args) throws Exception {
         if (args.length == 0)
             args = new String[] { "data" };
 
+        if (SERVER_PORT > 0) {
+            if (args.length > 1)
+                logger.warn("Query server supports single directory, ignoring all but {}", args[0]);
+            final File topDir = new File(args[0]);
+            final SourceParser depWalker = new SourceParser(topDir, THREADS);
+            final SourceDependencies availableDependencies = depWalker.collectAvailableDependencies();
+            loadJdkIndex(depWalker);
+            new QueryServer(topDir, availableDependencies).start(SERVER_PORT, THREADS);
+            return;
+        }
+
+        if (WATCH) {
+            if (args.length > 1)
+                logger.warn("Watch mode supports single directory, ignoring all but {}", args[0]);
+            new DependencyWatcher(new File(args[0]), THREADS).run();
+            return;
+        }
+
         for (String dir : args) {
             final File topDir = new File(dir);
             logger.info("Processing dir: {}", topDir.getAbsolutePath());
-            final SourceParser depWalker = new SourceParser(topDir);
+            Metrics.reset();
+            final SourceParser depWalker = new SourceParser(topDir, THREADS);
             final SourceDependencies availableDependencies = depWalker.collectAvailableDependencies();
+            loadJdkIndex(depWalker);
 
             DependencyCollector collector = new DependencyCollector(availableDependencies);
-            new TargetParser(topDir).accept(collector);
+            createTargetParser(topDir, availableDependencies).accept(collector);
 
-            final List<DependencyResolveResult> results = collector.getResults();
-            new ResultPrinter().print(new File(topDir, "output.html"), availableDependencies, results);
+            writeOutputs(topDir, availableDependencies, collector.getResults());
         }
     }
 }
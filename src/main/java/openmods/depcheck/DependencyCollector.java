@@ -1,78 +1,160 @@
 package openmods.depcheck;
 
 import java.io.File;
+import java.util.BitSet;
 import java.util.List;
 import java.util.Optional;
-import java.util.Set;
+import java.util.concurrent.ConcurrentMap;
 
 import openmods.depcheck.DependencyResolveResult.MissingClassDependencies;
 import openmods.depcheck.TargetParser.TargetClassVisitor;
 import openmods.depcheck.TargetParser.TargetModContentsVisitor;
 import openmods.depcheck.TargetParser.TargetModVisitor;
 import openmods.depcheck.utils.ElementType;
+import openmods.depcheck.utils.Metrics;
 import openmods.depcheck.utils.TypedElement;
 
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 import com.google.common.collect.Lists;
-import com.google.common.collect.Sets;
+import com.google.common.collect.Maps;
 
 public class DependencyCollector implements TargetModVisitor {
 
     private static final Logger logger = LoggerFactory.getLogger(DependencyCollector.class);
 
-    private static class ClassDependencyVisitor implements TargetClassVisitor {
-        private final MissingClassDependencies missingDependencies;
+    private static class Resolution {
+        private static final Resolution NONE = new Resolution(null, null, null);
+
+        public final String modId;
+
+        public final TypedElement element;
+
+        public final BitSet missingVersions;
+
+        public Resolution(String modId, TypedElement element, BitSet missingVersions) {
+            this.modId = modId;
+            this.element = element;
+            this.missingVersions = missingVersions;
+        }
+    }
+
+    // results of reference lookups, shared by all target files and classes - later occurrences only need to be attributed
+    private static class ReferenceResolver {
+        private static final Metrics.CacheCounter classResolutionCounter = Metrics.cacheCounter("class resolution");
+
+        private static final Metrics.CacheCounter elementResolutionCounter = Metrics.cacheCounter("element resolution");
+
         private final SourceDependencies availableDependencies;
 
-        public ClassDependencyVisitor(SourceDependencies availableDependencies, MissingClassDependencies missingDependencies) {
+        private final ConcurrentMap<String, Resolution> classResolutions = Maps.newConcurrentMap();
+
+        private final ConcurrentMap<String, ConcurrentMap<TypedElement, Resolution>> elementResolutions = Maps.newConcurrentMap();
+
+        public ReferenceResolver(SourceDependencies availableDependencies) {
             this.availableDependencies = availableDependencies;
-            this.missingDependencies = missingDependencies;
         }
 
-        @Override
-        public void visitRequiredClass(String requiredClsName) {
+        public Resolution resolveClass(String requiredClsName) {
+            classResolutionCounter.request();
+            return classResolutions.computeIfAbsent(requiredClsName, this::findMissingClass);
+        }
+
+        public Resolution resolveElement(String requiredCls, TypedElement element) {
+            elementResolutionCounter.request();
+            return elementResolutions.computeIfAbsent(requiredCls, k -> Maps.newConcurrentMap())
+                    .computeIfAbsent(element, e -> findMissingElement(requiredCls, e));
+        }
+
+        private Resolution findMissingClass(String requiredClsName) {
+            classResolutionCounter.miss();
+            final Metrics.Phase phase = Metrics.start("dependency resolution");
+            try {
+                return resolveMissingClass(requiredClsName);
+            } finally {
+                phase.end();
+            }
+        }
+
+        private Resolution resolveMissingClass(String requiredClsName) {
             final Optional<ModInfo> maybeMod = availableDependencies.identifyMod(requiredClsName);
             if (maybeMod.isPresent()) {
                 final ModInfo mod = maybeMod.get();
                 logger.trace("Adding class dependency {} from {}", requiredClsName, mod.modId);
 
-                final Set<String> matchingVersions = mod.findMatchingVersions(requiredClsName);
-                final Set<String> missingVersions = Sets.difference(mod.allVersions(), matchingVersions);
+                final BitSet missingVersions = mod.findMatchingVersions(requiredClsName);
+                missingVersions.flip(0, mod.versionCount());
 
                 if (!missingVersions.isEmpty())
-                    missingDependencies.getOrCreate(mod.modId).addMissingClass(requiredClsName, missingVersions);
+                    return new Resolution(mod.modId, null, missingVersions);
             } else {
                 logger.trace("Class dependency {} does not belong to any known mod, discarding", requiredClsName);
             }
+
+            return Resolution.NONE;
         }
 
-        @Override
-        public void visitRequiredElement(String requiredCls, ElementType type, String fieldName, String fieldDesc) {
+        private Resolution findMissingElement(String requiredCls, TypedElement element) {
+            elementResolutionCounter.miss();
+            final Metrics.Phase phase = Metrics.start("dependency resolution");
+            try {
+                return resolveMissingElement(requiredCls, element);
+            } finally {
+                phase.end();
+            }
+        }
+
+        private Resolution resolveMissingElement(String requiredCls, TypedElement element) {
             final Optional<ModInfo> maybeMod = availableDependencies.identifyMod(requiredCls);
             if (maybeMod.isPresent()) {
                 final ModInfo mod = maybeMod.get();
-                logger.trace("Adding {} dependency to {} {} from {}", type, fieldName, fieldDesc, mod.modId);
+                logger.trace("Adding {} dependency to {} {} from {}", element.type, element.name, element.desc, mod.modId);
 
-                final Set<String> matchingVersions = mod.findMatchingVersions(requiredCls, type, fieldName, fieldDesc);
-                final Set<String> missingVersions = Sets.difference(mod.allVersions(), matchingVersions);
+                final BitSet missingVersions = mod.findMatchingVersions(requiredCls, element.type, element.name, element.desc);
+                missingVersions.flip(0, mod.versionCount());
 
                 if (!missingVersions.isEmpty())
-                    missingDependencies.getOrCreate(mod.modId).addMissingElement(requiredCls, new TypedElement(type, fieldName, fieldDesc), missingVersions);
+                    return new Resolution(mod.modId, element, missingVersions);
             } else {
-                logger.trace("{} dependency {} {} does not belong to any known mod, discarding", type, fieldName, fieldDesc);
+                logger.trace("{} dependency {} {} does not belong to any known mod, discarding", element.type, element.name, element.desc);
             }
+
+            return Resolution.NONE;
+        }
+    }
+
+    private static class ClassDependencyVisitor implements TargetClassVisitor {
+        private final MissingClassDependencies missingDependencies;
+        private final ReferenceResolver resolver;
+
+        public ClassDependencyVisitor(ReferenceResolver resolver, MissingClassDependencies missingDependencies) {
+            this.resolver = resolver;
+            this.missingDependencies = missingDependencies;
+        }
+
+        @Override
+        public void visitRequiredClass(String requiredClsName) {
+            final Resolution resolution = resolver.resolveClass(requiredClsName);
+            if (resolution.missingVersions != null)
+                missingDependencies.getOrCreate(resolution.modId).addMissingClass(requiredClsName, resolution.missingVersions);
+        }
+
+        @Override
+        public void visitRequiredElement(String requiredCls, ElementType type, String fieldName, String fieldDesc) {
+            final Resolution resolution = resolver.resolveElement(requiredCls, TypedElement.of(type, fieldName, fieldDesc));
+            if (resolution.missingVersions != null)
+                missingDependencies.getOrCreate(resolution.modId).addMissingElement(requiredCls, resolution.element, resolution.missingVersions);
         }
 
     }
 
-    private final SourceDependencies availableDependencies;
+    private final ReferenceResolver resolver;
 
     private final List<DependencyResolveResult> results = Lists.newArrayList();
 
     public DependencyCollector(SourceDependencies availableDependencies) {
-        this.availableDependencies = availableDependencies;
+        this.resolver = new ReferenceResolver(availableDependencies);
     }
 
     @Override
@@ -85,12 +167,12 @@ public class DependencyCollector implements TargetModVisitor {
             @Override
             public TargetClassVisitor visitClass(String targetClass) {
                 logger.trace("Visiting mod class {}", targetClass);
-                return new ClassDependencyVisitor(availableDependencies, result.getOrCreate(targetClass));
+                return new ClassDependencyVisitor(resolver, result.getOrCreate(targetClass));
             }
 
             @Override
             public Optional<TargetClassVisitor> visitClassIfExists(String cls) {
-                return result.get(cls).map(deps -> new ClassDependencyVisitor(availableDependencies, deps));
+                return result.get(cls).map(deps -> new ClassDependencyVisitor(resolver, deps));
             }
         };
     }
@@ -5,19 +5,20 @@ import java.util.*;
 
 import openmods.depcheck.utils.TypedElement;
 
-import com.google.common.collect.*;
+import com.google.common.collect.Maps;
 
 public class DependencyResolveResult {
 
     public interface MissingDependencySink {
-        public void acceptMissingClass(String targetCls, String sourceMod, String sourceCls, Set<String> versions);
+        // versions are indices of ModInfo versions, see ModInfo.getVersion
+        public void acceptMissingClass(String targetCls, String sourceMod, String sourceCls, BitSet versions);
 
-        public void acceptMissingElement(String targetCls, String sourceMod, String sourceCls, TypedElement sourceElement, Set<String> versions);
+        public void acceptMissingElement(String targetCls, String sourceMod, String sourceCls, TypedElement sourceElement, BitSet versions);
     }
 
     private static class MissingSourceClass {
-        public final Set<String> missingClassVersions = Sets.newHashSet();
-        public final SetMultimap<TypedElement, String> missingElementVersions = HashMultimap.create();
+        public final BitSet missingClassVersions = new BitSet();
+        public final Map<TypedElement, BitSet> missingElementVersions = Maps.newHashMap();
     }
 
     public static class MissingSourceDependencies {
@@ -27,12 +28,12 @@ public class DependencyResolveResult {
             return missingClasses.computeIfAbsent(cls, k -> new MissingSourceClass());
         }
 
-        public void addMissingClass(String sourceClass, Collection<String> versions) {
-            getForClass(sourceClass).missingClassVersions.addAll(versions);
+        public void addMissingClass(String sourceClass, BitSet versions) {
+            getForClass(sourceClass).missingClassVersions.or(versions);
         }
 
-        public void addMissingElement(String sourceClass, TypedElement element, Collection<String> versions) {
-            getForClass(sourceClass).missingElementVersions.putAll(element, versions);
+        public void addMissingElement(String sourceClass, TypedElement element, BitSet versions) {
+            getForClass(sourceClass).missingElementVersions.computeIfAbsent(element, k -> new BitSet()).or(versions);
         }
     }
 
@@ -66,7 +67,7 @@ public class DependencyResolveResult {
                     if (!missingSourceClass.missingClassVersions.isEmpty())
                         sink.acceptMissingClass(targetCls, sourceMod, sourceCls, missingSourceClass.missingClassVersions);
 
-                    Multimaps.asMap(missingSourceClass.missingElementVersions)
+                    missingSourceClass.missingElementVersions
                             .forEach((sourceElement, versions) -> sink.acceptMissingElement(targetCls, sourceMod, sourceCls, sourceElement, versions));
                 });
             });
@@ -0,0 +1,196 @@
+package openmods.depcheck;
+
+import static java.nio.file.StandardWatchEventKinds.*;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.*;
+import java.util.*;
+import java.util.concurrent.TimeUnit;
+
+import openmods.depcheck.utils.Metrics;
+import openmods.depcheck.utils.PackagePrefilter;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.google.common.base.Stopwatch;
+import com.google.common.collect.Lists;
+import com.google.common.collect.Maps;
+import com.google.common.collect.Sets;
+
+/**
+ * Long running mode: keeps source dependencies and target results in memory and updates them when files in {@code mods} or {@code targets} change.
+ * Changed target jars are rescanned. Changed source mods cause rescan of targets that may reference their packages.
+ */
+public class DependencyWatcher {
+
+    private static final Logger logger = LoggerFactory.getLogger(DependencyWatcher.class);
+
+    // changes are processed after no events were received for this time, so copying of large jars is not picked up halfway
+    private static final long QUIET_PERIOD_MS = 500;
+
+    private static class TargetState {
+        private final long size;
+        private final long lastModified;
+        private final long dynamicLastModified;
+
+        public TargetState(File target) {
+            this.size = target.length();
+            this.lastModified = target.lastModified();
+            this.dynamicLastModified = new File(target.getParentFile(), target.getName() + ".dynamic").lastModified();
+        }
+
+        public boolean isSame(TargetState other) {
+            return other != null && size == other.size && lastModified == other.lastModified && dynamicLastModified == other.dynamicLastModified;
+        }
+    }
+
+    private final File topDir;
+
+    private final Path modsDir;
+
+    private final Path targetsDir;
+
+    private final SourceParser sourceParser;
+
+    private SourceDependencies availableDependencies;
+
+    private final Map<File, DependencyResolveResult> results = Maps.newTreeMap(Comparator.comparing(File::getName));
+
+    private final Map<File, TargetState> targetStates = Maps.newHashMap();
+
+    public DependencyWatcher(File topDir, int parallelism) {
+        this.topDir = topDir;
+        this.modsDir = new File(topDir, "mods").toPath();
+        this.targetsDir = new File(topDir, "targets").toPath();
+        this.sourceParser = new SourceParser(topDir, parallelism);
+    }
+
+    public void run() throws IOException, InterruptedException {
+        logger.info("Processing dir: {}", topDir.getAbsolutePath());
+        Metrics.reset();
+        availableDependencies = sourceParser.collectAvailableDependencies();
+        DependencyChecker.loadJdkIndex(sourceParser);
+        update(false);
+
+        try (WatchService watcher = FileSystems.getDefault().newWatchService()) {
+            modsDir.register(watcher, ENTRY_CREATE, ENTRY_DELETE, ENTRY_MODIFY);
+            registerModDirs(watcher);
+            targetsDir.register(watcher, ENTRY_CREATE, ENTRY_DELETE, ENTRY_MODIFY);
+
+            logger.info("Watching {} and {} for changes", modsDir, targetsDir);
+            while (true) {
+                WatchKey key = watcher.take();
+                boolean modsChanged = false;
+                do {
+                    final Path dir = (Path)key.watchable();
+                    for (WatchEvent<?> event : key.pollEvents()) {
+                        // overflow means events were lost, which may include changes in mods
+                        if (event.kind() == OVERFLOW || !dir.equals(targetsDir))
+                            modsChanged = true;
+                    }
+                    key.reset();
+                    key = watcher.poll(QUIET_PERIOD_MS, TimeUnit.MILLISECONDS);
+                } while (key != null);
+
+                // new mod directories are registered after batch, since their creation events may have been lost
+                if (modsChanged)
+                    registerModDirs(watcher);
+
+                try {
+                    Metrics.reset();
+                    update(modsChanged);
+                } catch (RuntimeException e) {
+                    logger.error("Failed to update results, waiting for next change", e);
+                }
+            }
+        }
+    }
+
+    // registering directory that is already watched only returns its existing key
+    private void registerModDirs(WatchService watcher) throws IOException {
+        for (File modDir : modsDir.toFile().listFiles(File::isDirectory))
+            modDir.toPath().register(watcher, ENTRY_CREATE, ENTRY_DELETE, ENTRY_MODIFY);
+    }
+
+    private Set<File> findTargetsReferencing(Set<String> prefixes) {
+        final PackagePrefilter filter = new PackagePrefilter(prefixes);
+        final Set<File> result = Sets.newHashSet();
+        for (File target : results.keySet()) {
+            try {
+                if (TargetParser.mayReference(target, filter))
+                    result.add(target);
+            } catch (IOException e) {
+                logger.warn("Failed to check target {}, rescanning", target, e);
+                result.add(target);
+            }
+        }
+        return result;
+    }
+
+    private void update(boolean modsChanged) {
+        final Stopwatch stopwatch = Stopwatch.createStarted();
+        final Set<File> toScan = Sets.newHashSet();
+
+        boolean isChanged = false;
+        if (modsChanged) {
+            final Map<String, String> oldPrefixes = Maps.newHashMap();
+            for (ModInfo mod : availableDependencies.getAllMods())
+                oldPrefixes.put(mod.modId, mod.pkgPrefix);
+
+            final Set<String> changedMods = sourceParser.updateAvailableDependencies(availableDependencies);
+            if (!changedMods.isEmpty()) {
+                logger.info("Source mods changed: {}", changedMods);
+                isChanged = true;
+
+                final Set<String> prefixes = Sets.newHashSet();
+                for (String modId : changedMods) {
+                    final String oldPrefix = oldPrefixes.get(modId);
+                    if (oldPrefix != null)
+                        prefixes.add(oldPrefix);
+
+                    final ModInfo mod = availableDependencies.getMod(modId);
+                    if (mod != null)
+                        prefixes.add(mod.pkgPrefix);
+                }
+
+                toScan.addAll(findTargetsReferencing(prefixes));
+            }
+        }
+
+        final List<File> currentTargets = TargetParser.listTargets(targetsDir.toFile());
+        final Set<File> removedTargets = Sets.newHashSet(results.keySet());
+        removedTargets.removeAll(currentTargets);
+        for (File target : removedTargets) {
+            logger.info("Target {} removed", target.getName());
+            results.remove(target);
+            targetStates.remove(target);
+            isChanged = true;
+        }
+
+        for (File target : currentTargets) {
+            final TargetState state = new TargetState(target);
+            if (!state.isSame(targetStates.get(target))) {
+                toScan.add(target);
+                targetStates.put(target, state);
+            }
+        }
+
+        if (!toScan.isEmpty()) {
+            final List<File> sortedTargets = Lists.newArrayList(toScan);
+            sortedTargets.sort(Comparator.comparing(File::getName));
+
+            final DependencyCollector collector = new DependencyCollector(availableDependencies);
+            DependencyChecker.createTargetParser(topDir, availableDependencies).accept(collector, sortedTargets);
+            for (DependencyResolveResult result : collector.getResults())
+                results.put(result.jarFile, result);
+            isChanged = true;
+        }
+
+        if (isChanged) {
+            DependencyChecker.writeOutputs(topDir, availableDependencies, Lists.newArrayList(results.values()));
+            logger.info("Results updated in {} ms, {} target(s) scanned", stopwatch.elapsed(TimeUnit.MILLISECONDS), toScan.size());
+        }
+    }
+}
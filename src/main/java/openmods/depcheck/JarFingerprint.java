@@ -0,0 +1,45 @@
+package openmods.depcheck;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.Serializable;
+
+import com.google.common.hash.Hashing;
+import com.google.common.io.Files;
+
+public class JarFingerprint implements Serializable {
+    private static final long serialVersionUID = -2395873305418223616L;
+
+    public final String fileName;
+
+    public final long size;
+
+    public final long lastModified;
+
+    public final String hash;
+
+    public JarFingerprint(String fileName, long size, long lastModified, String hash) {
+        this.fileName = fileName;
+        this.size = size;
+        this.lastModified = lastModified;
+        this.hash = hash;
+    }
+
+    public static JarFingerprint create(File file) throws IOException {
+        return new JarFingerprint(file.getName(), file.length(), file.lastModified(), Files.hash(file, Hashing.sha1()).toString());
+    }
+
+    // cheap check, used to avoid hashing files that were not touched
+    public boolean hasSameAttributes(File file) {
+        return fileName.equals(file.getName()) && size == file.length() && lastModified == file.lastModified();
+    }
+
+    public boolean hasSameContents(JarFingerprint other) {
+        return size == other.size && hash.equals(other.hash);
+    }
+
+    @Override
+    public String toString() {
+        return fileName + "[" + size + ", " + hash + "]";
+    }
+}
@@ -0,0 +1,559 @@
+package openmods.depcheck;
+
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileChannel.MapMode;
+import java.nio.file.StandardOpenOption;
+import java.util.*;
+import java.util.function.BiConsumer;
+
+import openmods.depcheck.ModInfo.ClassSignature;
+import openmods.depcheck.ModInfo.VersionedClass;
+import openmods.depcheck.utils.ElementType;
+import openmods.depcheck.utils.MappedBuffers;
+import openmods.depcheck.utils.TypedElement;
+
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.Lists;
+import com.google.common.collect.Maps;
+
+/**
+ * Read-only, memory-mapped class data of single mod.
+ *
+ * Layout: header (mod info, versions, section offsets), string table (hash slots, offsets, UTF-16 data), class table (hash slots, offsets, class and signature records).
+ * All lookups are done directly on mapped buffer, so opening file does not depend on its size.
+ * Index must be closed before file is replaced or deleted, since open mapping blocks that on Windows.
+ */
+public class ModIndex implements Closeable {
+
+    private static final int MAGIC = 0x44434958; // DCIX
+
+    private static final int FORMAT_VERSION = 1;
+
+    private static final int NO_STRING = -1;
+
+    private static final int VERSION_ENTRY_SIZE = 4 + 4 + 4 + 8 + 8 + 4;
+
+    private static final int TABLE_HEADER_SIZE = 5 * 4;
+
+    private final ByteBuffer buffer;
+
+    private boolean closed;
+
+    private final String modId;
+
+    private final String pkgPrefix;
+
+    private final List<String> versions;
+
+    private final List<JarFingerprint> versionSources;
+
+    private final int stringCount;
+    private final int stringHashSize;
+    private final int stringHashOffset;
+    private final int stringOffsetsOffset;
+    private final int stringDataOffset;
+
+    private final int classCount;
+    private final int classHashSize;
+    private final int classHashOffset;
+    private final int classOffsetsOffset;
+    private final int classDataOffset;
+
+    private ModIndex(ByteBuffer buffer) throws IOException {
+        this.buffer = buffer;
+
+        if (buffer.getInt(0) != MAGIC)
+            throw new IOException("Invalid index file header");
+
+        final int formatVersion = buffer.getInt(4);
+        if (formatVersion != FORMAT_VERSION)
+            throw new IOException("Unsupported index format version: " + formatVersion);
+
+        final int modIdString = buffer.getInt(8);
+        final int pkgPrefixString = buffer.getInt(12);
+        final int versionCount = buffer.getInt(16);
+
+        int offset = 20 + versionCount * VERSION_ENTRY_SIZE;
+        this.stringCount = buffer.getInt(offset);
+        this.stringHashSize = buffer.getInt(offset + 4);
+        this.stringHashOffset = buffer.getInt(offset + 8);
+        this.stringOffsetsOffset = buffer.getInt(offset + 12);
+        this.stringDataOffset = buffer.getInt(offset + 16);
+
+        offset += TABLE_HEADER_SIZE;
+        this.classCount = buffer.getInt(offset);
+        this.classHashSize = buffer.getInt(offset + 4);
+        this.classHashOffset = buffer.getInt(offset + 8);
+        this.classOffsetsOffset = buffer.getInt(offset + 12);
+        this.classDataOffset = buffer.getInt(offset + 16);
+
+        this.modId = getString(modIdString);
+        this.pkgPrefix = getString(pkgPrefixString);
+
+        final List<String> versions = Lists.newArrayList();
+        final List<JarFingerprint> versionSources = Lists.newArrayList();
+        for (int i = 0; i < versionCount; i++) {
+            final int entryOffset = 20 + i * VERSION_ENTRY_SIZE;
+            versions.add(getString(buffer.getInt(entryOffset)));
+            if (buffer.getInt(entryOffset + 4) != 0) {
+                versionSources.add(new JarFingerprint(
+                        getString(buffer.getInt(entryOffset + 8)),
+                        buffer.getLong(entryOffset + 12),
+                        buffer.getLong(entryOffset + 20),
+                        getString(buffer.getInt(entryOffset + 28))));
+            } else {
+                versionSources.add(null);
+            }
+        }
+
+        this.versions = versions;
+        this.versionSources = versionSources;
+    }
+
+    public static ModIndex open(File file) throws IOException {
+        try (FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.READ)) {
+            return new ModIndex(channel.map(MapMode.READ_ONLY, 0, channel.size()));
+        }
+    }
+
+    /**
+     * Unmaps file. Index and all classes read from it must not be used afterwards.
+     */
+    @Override
+    public synchronized void close() {
+        if (!closed) {
+            closed = true;
+            MappedBuffers.unmap(buffer);
+        }
+    }
+
+    public String getModId() {
+        return modId;
+    }
+
+    public String getPkgPrefix() {
+        return pkgPrefix;
+    }
+
+    public int getVersionCount() {
+        return versions.size();
+    }
+
+    public String getVersion(int version) {
+        return versions.get(version);
+    }
+
+    public JarFingerprint getVersionSource(int version) {
+        return versionSources.get(version);
+    }
+
+    private static int hash(String value) {
+        final int h = value.hashCode();
+        return h ^ (h >>> 16);
+    }
+
+    private static int hashTableSize(int count) {
+        return Integer.highestOneBit(Math.max(count, 1) * 2 - 1) << 1;
+    }
+
+    private String getString(int id) {
+        if (id == NO_STRING)
+            return null;
+
+        final int offset = stringDataOffset + buffer.getInt(stringOffsetsOffset + 4 * id);
+        final int length = buffer.getInt(offset);
+        final char[] chars = new char[length];
+        for (int i = 0; i < length; i++)
+            chars[i] = buffer.getChar(offset + 4 + 2 * i);
+        return new String(chars);
+    }
+
+    private boolean isStringEqual(int id, String value) {
+        final int offset = stringDataOffset + buffer.getInt(stringOffsetsOffset + 4 * id);
+        final int length = buffer.getInt(offset);
+        if (length != value.length())
+            return false;
+
+        for (int i = 0; i < length; i++)
+            if (buffer.getChar(offset + 4 + 2 * i) != value.charAt(i))
+                return false;
+
+        return true;
+    }
+
+    private int findString(String value) {
+        final int mask = stringHashSize - 1;
+        for (int slot = hash(value) & mask;; slot = (slot + 1) & mask) {
+            final int id = buffer.getInt(stringHashOffset + 4 * slot) - 1;
+            if (id < 0)
+                return NO_STRING;
+            if (isStringEqual(id, value))
+                return id;
+        }
+    }
+
+    private int getClassOffset(int id) {
+        return classDataOffset + buffer.getInt(classOffsetsOffset + 4 * id);
+    }
+
+    public VersionedClass findClass(String cls) {
+        final int mask = classHashSize - 1;
+        for (int slot = hash(cls) & mask;; slot = (slot + 1) & mask) {
+            final int id = buffer.getInt(classHashOffset + 4 * slot) - 1;
+            if (id < 0)
+                return null;
+
+            final int offset = getClassOffset(id);
+            if (isStringEqual(buffer.getInt(offset), cls))
+                return new IndexedClass(offset);
+        }
+    }
+
+    public void forEachClass(BiConsumer<String, VersionedClass> consumer) {
+        for (int id = 0; id < classCount; id++) {
+            final int offset = getClassOffset(id);
+            consumer.accept(getString(buffer.getInt(offset)), new IndexedClass(offset));
+        }
+    }
+
+    private BitSet readMask(int offset) {
+        final int words = buffer.getInt(offset);
+        final long[] result = new long[words];
+        for (int i = 0; i < words; i++)
+            result[i] = buffer.getLong(offset + 4 + 8 * i);
+        return BitSet.valueOf(result);
+    }
+
+    private boolean isInMask(int offset, int bit) {
+        final int word = bit >> 6;
+        return word < buffer.getInt(offset) && (buffer.getLong(offset + 4 + 8 * word) & (1L << bit)) != 0;
+    }
+
+    private int skipMask(int offset) {
+        return offset + 4 + 8 * buffer.getInt(offset);
+    }
+
+    // class record: name, signature count, signature offsets, mask of all versions
+    private class IndexedClass implements VersionedClass {
+        private final int offset;
+
+        public IndexedClass(int offset) {
+            this.offset = offset;
+        }
+
+        private int signatureCount() {
+            return buffer.getInt(offset + 4);
+        }
+
+        @Override
+        public BitSet getVersions() {
+            return readMask(offset + 8 + 4 * signatureCount());
+        }
+
+        @Override
+        public ClassSignature getForVersion(int version) {
+            final int signatureCount = signatureCount();
+            for (int i = 0; i < signatureCount; i++) {
+                final int signatureOffset = classDataOffset + buffer.getInt(offset + 8 + 4 * i);
+                if (isInMask(signatureOffset, version))
+                    return new IndexedSignature(signatureOffset);
+            }
+
+            return null;
+        }
+
+        @Override
+        public void forEachSignature(BiConsumer<ClassSignature, BitSet> consumer) {
+            final int signatureCount = signatureCount();
+            for (int i = 0; i < signatureCount; i++) {
+                final int signatureOffset = classDataOffset + buffer.getInt(offset + 8 + 4 * i);
+                consumer.accept(new IndexedSignature(signatureOffset), readMask(signatureOffset));
+            }
+        }
+    }
+
+    // signature record: mask of versions, super class, interfaces, sorted members (type, name, desc)
+    private class IndexedSignature implements ClassSignature {
+        private final int offset;
+
+        public IndexedSignature(int offset) {
+            this.offset = offset;
+        }
+
+        private int interfacesOffset() {
+            return skipMask(offset) + 4;
+        }
+
+        private int membersOffset() {
+            final int interfacesOffset = interfacesOffset();
+            return interfacesOffset + 4 + 4 * buffer.getInt(interfacesOffset);
+        }
+
+        @Override
+        public String getSuperClass() {
+            return getString(buffer.getInt(skipMask(offset)));
+        }
+
+        @Override
+        public Collection<String> getInterfaces() {
+            final int interfacesOffset = interfacesOffset();
+            final int count = buffer.getInt(interfacesOffset);
+            final ImmutableList.Builder<String> result = ImmutableList.builder();
+            for (int i = 0; i < count; i++)
+                result.add(getString(buffer.getInt(interfacesOffset + 4 + 4 * i)));
+            return result.build();
+        }
+
+        private int compareMember(int memberOffset, int type, int name, int desc) {
+            int result = Integer.compare(buffer.getInt(memberOffset), type);
+            if (result != 0)
+                return result;
+
+            result = Integer.compare(buffer.getInt(memberOffset + 4), name);
+            if (result != 0)
+                return result;
+
+            return Integer.compare(buffer.getInt(memberOffset + 8), desc);
+        }
+
+        @Override
+        public boolean hasElement(TypedElement element) {
+            final int name = findString(element.name);
+            if (name == NO_STRING)
+                return false;
+
+            final int desc = findString(element.desc);
+            if (desc == NO_STRING)
+                return false;
+
+            final int type = element.type.ordinal();
+            final int membersOffset = membersOffset();
+            int low = 0;
+            int high = buffer.getInt(membersOffset) - 1;
+            while (low <= high) {
+                final int mid = (low + high) >>> 1;
+                final int cmp = compareMember(membersOffset + 4 + 12 * mid, type, name, desc);
+                if (cmp < 0)
+                    low = mid + 1;
+                else if (cmp > 0)
+                    high = mid - 1;
+                else
+                    return true;
+            }
+
+            return false;
+        }
+
+        @Override
+        public Collection<TypedElement> getElements() {
+            final ElementType[] types = ElementType.values();
+            final int membersOffset = membersOffset();
+            final int count = buffer.getInt(membersOffset);
+            final List<TypedElement> result = Lists.newArrayListWithCapacity(count);
+            for (int i = 0; i < count; i++) {
+                final int memberOffset = membersOffset + 4 + 12 * i;
+                result.add(TypedElement.of(types[buffer.getInt(memberOffset)],
+                        getString(buffer.getInt(memberOffset + 4)),
+                        getString(buffer.getInt(memberOffset + 8))));
+            }
+            return result;
+        }
+
+        private ModIndex owner() {
+            return ModIndex.this;
+        }
+
+        @Override
+        public boolean equals(Object obj) {
+            if (obj instanceof IndexedSignature) {
+                final IndexedSignature other = (IndexedSignature)obj;
+                return other.owner() == owner() && other.offset == offset;
+            }
+
+            return false;
+        }
+
+        @Override
+        public int hashCode() {
+            return offset;
+        }
+    }
+
+    private static class StringTable {
+        private final Map<String, Integer> ids = Maps.newHashMap();
+        private final List<String> strings = Lists.newArrayList();
+
+        public int get(String value) {
+            if (value == null)
+                return NO_STRING;
+
+            return ids.computeIfAbsent(value, k -> {
+                strings.add(k);
+                return strings.size() - 1;
+            });
+        }
+    }
+
+    private static void writeMask(DataOutput output, BitSet mask) throws IOException {
+        final long[] words = mask.toLongArray();
+        output.writeInt(words.length);
+        for (long word : words)
+            output.writeLong(word);
+    }
+
+    private static void writeSignature(DataOutput output, StringTable strings, ClassSignature signature, BitSet versions) throws IOException {
+        writeMask(output, versions);
+        output.writeInt(strings.get(signature.getSuperClass()));
+
+        final Collection<String> interfaces = signature.getInterfaces();
+        output.writeInt(interfaces.size());
+        for (String intf : interfaces)
+            output.writeInt(strings.get(intf));
+
+        final List<int[]> members = Lists.newArrayList();
+        for (TypedElement element : signature.getElements())
+            members.add(new int[] { element.type.ordinal(), strings.get(element.name), strings.get(element.desc) });
+
+        members.sort((a, b) -> {
+            int result = Integer.compare(a[0], b[0]);
+            if (result != 0)
+                return result;
+            result = Integer.compare(a[1], b[1]);
+            if (result != 0)
+                return result;
+            return Integer.compare(a[2], b[2]);
+        });
+
+        output.writeInt(members.size());
+        for (int[] member : members) {
+            output.writeInt(member[0]);
+            output.writeInt(member[1]);
+            output.writeInt(member[2]);
+        }
+    }
+
+    private static int writeClass(DataOutputStream output, StringTable strings, String clsName, VersionedClass cls) throws IOException {
+        final BitSet allVersions = cls.getVersions();
+        final Map<ClassSignature, BitSet> signatures = Maps.newLinkedHashMap();
+        cls.forEachSignature(signatures::put);
+
+        final List<Integer> signatureOffsets = Lists.newArrayList();
+        for (Map.Entry<ClassSignature, BitSet> e : signatures.entrySet()) {
+            signatureOffsets.add(output.size());
+            writeSignature(output, strings, e.getKey(), e.getValue());
+        }
+
+        final int classOffset = output.size();
+        output.writeInt(strings.get(clsName));
+        output.writeInt(signatureOffsets.size());
+        for (int signatureOffset : signatureOffsets)
+            output.writeInt(signatureOffset);
+        writeMask(output, allVersions);
+        return classOffset;
+    }
+
+    private static int[] createHashTable(List<String> keys) {
+        final int[] result = new int[hashTableSize(keys.size())];
+        final int mask = result.length - 1;
+        for (int id = 0; id < keys.size(); id++) {
+            int slot = hash(keys.get(id)) & mask;
+            while (result[slot] != 0)
+                slot = (slot + 1) & mask;
+            result[slot] = id + 1;
+        }
+        return result;
+    }
+
+    private static void writeInts(DataOutput output, int[] values) throws IOException {
+        for (int value : values)
+            output.writeInt(value);
+    }
+
+    public static void write(ModInfo mod, OutputStream os) throws IOException {
+        final StringTable strings = new StringTable();
+        final int modIdString = strings.get(mod.modId);
+        final int pkgPrefixString = strings.get(mod.pkgPrefix);
+
+        final int versionCount = mod.versionCount();
+        final int[][] versionStrings = new int[versionCount][];
+        for (int i = 0; i < versionCount; i++) {
+            final String version = mod.getVersion(i);
+            final JarFingerprint source = mod.getVersionSource(version);
+            versionStrings[i] = source != null
+                    ? new int[] { strings.get(version), strings.get(source.fileName), strings.get(source.hash) }
+                    : new int[] { strings.get(version), NO_STRING, NO_STRING };
+        }
+
+        final SortedMap<String, VersionedClass> classes = new TreeMap<>();
+        mod.forEachClass(classes::put);
+
+        final ByteArrayOutputStream classData = new ByteArrayOutputStream();
+        final DataOutputStream classOutput = new DataOutputStream(classData);
+        final List<String> classNames = Lists.newArrayList(classes.keySet());
+        final int[] classOffsets = new int[classNames.size()];
+        for (int i = 0; i < classOffsets.length; i++) {
+            final String clsName = classNames.get(i);
+            classOffsets[i] = writeClass(classOutput, strings, clsName, classes.get(clsName));
+        }
+        classOutput.flush();
+
+        final int[] stringOffsets = new int[strings.strings.size()];
+        int stringDataSize = 0;
+        for (int i = 0; i < stringOffsets.length; i++) {
+            stringOffsets[i] = stringDataSize;
+            stringDataSize += 4 + 2 * strings.strings.get(i).length();
+        }
+
+        final int[] stringHash = createHashTable(strings.strings);
+        final int[] classHash = createHashTable(classNames);
+
+        final int stringHashOffset = 20 + versionCount * VERSION_ENTRY_SIZE + 2 * TABLE_HEADER_SIZE;
+        final int stringOffsetsOffset = stringHashOffset + 4 * stringHash.length;
+        final int stringDataOffset = stringOffsetsOffset + 4 * stringOffsets.length;
+        final int classHashOffset = stringDataOffset + stringDataSize;
+        final int classOffsetsOffset = classHashOffset + 4 * classHash.length;
+        final int classDataOffset = classOffsetsOffset + 4 * classOffsets.length;
+
+        final DataOutputStream output = new DataOutputStream(new BufferedOutputStream(os));
+        output.writeInt(MAGIC);
+        output.writeInt(FORMAT_VERSION);
+        output.writeInt(modIdString);
+        output.writeInt(pkgPrefixString);
+        output.writeInt(versionCount);
+        for (int i = 0; i < versionCount; i++) {
+            final JarFingerprint source = mod.getVersionSource(mod.getVersion(i));
+            output.writeInt(versionStrings[i][0]);
+            output.writeInt(source != null ? 1 : 0);
+            output.writeInt(versionStrings[i][1]);
+            output.writeLong(source != null ? source.size : 0);
+            output.writeLong(source != null ? source.lastModified : 0);
+            output.writeInt(versionStrings[i][2]);
+        }
+
+        output.writeInt(stringOffsets.length);
+        output.writeInt(stringHash.length);
+        output.writeInt(stringHashOffset);
+        output.writeInt(stringOffsetsOffset);
+        output.writeInt(stringDataOffset);
+
+        output.writeInt(classOffsets.length);
+        output.writeInt(classHash.length);
+        output.writeInt(classHashOffset);
+        output.writeInt(classOffsetsOffset);
+        output.writeInt(classDataOffset);
+
+        writeInts(output, stringHash);
+        writeInts(output, stringOffsets);
+        for (String value : strings.strings) {
+            output.writeInt(value.length());
+            output.writeChars(value);
+        }
+
+        writeInts(output, classHash);
+        writeInts(output, classOffsets);
+        classData.writeTo(output);
+        output.flush();
+    }
+}
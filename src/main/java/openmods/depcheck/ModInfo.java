@@ -1,28 +1,45 @@
 package openmods.depcheck;
 
+import java.io.File;
+import java.io.IOException;
 import java.io.Serializable;
+import java.util.BitSet;
+import java.util.Collection;
+import java.util.List;
 import java.util.Map;
+import java.util.Objects;
 import java.util.Set;
-import java.util.stream.Collectors;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.BiConsumer;
 
 import openmods.depcheck.utils.ElementType;
 import openmods.depcheck.utils.LibClassChecker;
+import openmods.depcheck.utils.Metrics;
 import openmods.depcheck.utils.TypedElement;
 
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
 import com.google.common.base.Preconditions;
 import com.google.common.collect.ImmutableSet;
+import com.google.common.collect.Lists;
 import com.google.common.collect.Maps;
 import com.google.common.collect.Sets;
 
 public class ModInfo implements Serializable {
 
-    private static final long serialVersionUID = -8439947254870180769L;
+    private static final long serialVersionUID = -1770416829806036992L;
+
+    private static final Logger logger = LoggerFactory.getLogger(ModInfo.class);
+
+    private static final LongAdder findMatchingVersionsCalls = Metrics.counter("findMatchingVersions");
 
     public class ModRegistrationContext {
-        private final String modVersion;
-        private boolean notEmpty;
+        private final int modVersion;
+        private volatile boolean notEmpty;
 
-        private ModRegistrationContext(String modVersion) {
+        private ModRegistrationContext(int modVersion) {
             this.modVersion = modVersion;
         }
 
@@ -30,16 +47,9 @@ public class ModInfo implements Serializable {
             return classes.computeIfAbsent(clsName, k -> new ClassVersions());
         }
 
-        public void registerClass(String clsName, String superClass, Set<String> interfaces) {
-            final ClassVersions cls = getOrCreateClass(clsName);
-            cls.createForVersion(modVersion, superClass, interfaces);
-            notEmpty = true;
-        }
-
-        public void registerElement(String clsName, ElementType type, String name, String desc) {
+        public void registerClass(String clsName, String superClass, Set<String> interfaces, Set<TypedElement> elements) {
             final ClassVersions cls = getOrCreateClass(clsName);
-            final ClassVersion cv = cls.getForVersion(modVersion);
-            cv.elements.add(new TypedElement(type, name, desc));
+            cls.createForVersion(modVersion, new ClassVersion(superClass, interfaces, elements));
             notEmpty = true;
         }
 
@@ -48,53 +58,346 @@ public class ModInfo implements Serializable {
         }
     }
 
-    public static class ClassVersion implements Serializable {
+    public interface ClassSignature {
+        public String getSuperClass();
+
+        public Collection<String> getInterfaces();
+
+        public boolean hasElement(TypedElement element);
+
+        public Collection<TypedElement> getElements();
+    }
+
+    public interface VersionedClass {
+        public BitSet getVersions();
+
+        public ClassSignature getForVersion(int version);
+
+        // visits every distinct signature once, with versions that share it (masks must not be modified)
+        public void forEachSignature(BiConsumer<ClassSignature, BitSet> consumer);
+    }
+
+    // immutable, compared by contents - versions with same signature share single instance
+    public static class ClassVersion implements ClassSignature, Serializable {
         private static final long serialVersionUID = 3023800591787115776L;
 
         public final String superClass;
         public final Set<String> interfaces;
 
-        private final Set<TypedElement> elements = Sets.newHashSet();
+        private final Set<TypedElement> elements;
+
+        private transient int hash;
 
-        public ClassVersion(String superClass, Set<String> interfaces) {
+        public ClassVersion(String superClass, Collection<String> interfaces, Collection<TypedElement> elements) {
             this.superClass = superClass;
             this.interfaces = ImmutableSet.copyOf(interfaces);
+            this.elements = ImmutableSet.copyOf(elements);
+        }
+
+        @Override
+        public String getSuperClass() {
+            return superClass;
+        }
+
+        @Override
+        public Collection<String> getInterfaces() {
+            return interfaces;
+        }
+
+        @Override
+        public boolean hasElement(TypedElement element) {
+            return elements.contains(element);
+        }
+
+        @Override
+        public Collection<TypedElement> getElements() {
+            return elements;
+        }
+
+        @Override
+        public int hashCode() {
+            int result = hash;
+            if (result == 0) {
+                result = Objects.hash(superClass, interfaces, elements);
+                hash = result;
+            }
+            return result;
+        }
+
+        @Override
+        public boolean equals(Object obj) {
+            if (obj == this)
+                return true;
+
+            if (obj instanceof ClassVersion) {
+                final ClassVersion other = (ClassVersion)obj;
+                return hashCode() == other.hashCode()
+                        && Objects.equals(superClass, other.superClass)
+                        && interfaces.equals(other.interfaces)
+                        && elements.equals(other.elements);
+            }
+
+            return false;
         }
     }
 
-    public static class ClassVersions implements Serializable {
-        private static final long serialVersionUID = 2659734086399983238L;
+    public static class ClassVersions implements VersionedClass, Serializable {
+        private static final long serialVersionUID = -5336208441434337280L;
 
-        public final Map<String, ClassVersion> versions = Maps.newHashMap();
+        private final Map<Integer, ClassVersion> versions = Maps.newConcurrentMap();
 
-        public void createForVersion(String version, String superClass, Set<String> interfaces) {
-            versions.put(version, new ClassVersion(superClass, interfaces));
+        private final BitSet versionMask = new BitSet();
+
+        private transient volatile Map<ClassVersion, BitSet> signatures;
+
+        // signature -> instance shared by all versions with it, rebuilt from 'versions' when missing
+        private transient Map<ClassVersion, ClassVersion> canonicalVersions;
+
+        public void createForVersion(int version, ClassVersion cls) {
+            synchronized (versionMask) {
+                if (canonicalVersions == null) {
+                    canonicalVersions = Maps.newHashMap();
+                    versions.values().forEach(v -> canonicalVersions.putIfAbsent(v, v));
+                }
+
+                final ClassVersion existing = canonicalVersions.putIfAbsent(cls, cls);
+                versions.put(version, existing != null ? existing : cls);
+                versionMask.set(version);
+                signatures = null;
+            }
         }
 
-        public ClassVersion getForVersion(String version) {
+        @Override
+        public ClassVersion getForVersion(int version) {
             return versions.get(version);
         }
+
+        @Override
+        public BitSet getVersions() {
+            synchronized (versionMask) {
+                return (BitSet)versionMask.clone();
+            }
+        }
+
+        @Override
+        public void forEachSignature(BiConsumer<ClassSignature, BitSet> consumer) {
+            Map<ClassVersion, BitSet> result = signatures;
+            if (result == null) {
+                synchronized (versionMask) {
+                    final Map<ClassVersion, BitSet> grouped = Maps.newLinkedHashMap();
+                    versions.forEach((version, cls) -> grouped.computeIfAbsent(cls, k -> new BitSet()).set(version));
+                    result = grouped;
+                    signatures = result;
+                }
+            }
+
+            result.forEach(consumer);
+        }
+
+        private boolean remapVersions(int[] oldToNew) {
+            synchronized (versionMask) {
+                final Map<Integer, ClassVersion> remapped = Maps.newHashMap();
+                versions.forEach((version, cls) -> {
+                    final int newVersion = oldToNew[version];
+                    if (newVersion >= 0)
+                        remapped.put(newVersion, cls);
+                });
+
+                versions.clear();
+                versions.putAll(remapped);
+
+                versionMask.clear();
+                remapped.keySet().forEach(versionMask::set);
+                signatures = null;
+                canonicalVersions = null;
+                return !versions.isEmpty();
+            }
+        }
     }
 
-    private transient boolean isUpdated;
+    private transient volatile boolean isUpdated;
 
     public final String pkgPrefix;
     public final String modId;
 
-    private final Set<String> allVersions = Sets.newHashSet();
+    private final Set<String> allVersions = Sets.newConcurrentHashSet();
+
+    // version index -> version name, indices are used in all version masks
+    private final List<String> versionNames = new CopyOnWriteArrayList<>();
+
+    private final Map<String, JarFingerprint> versionSources = Maps.newConcurrentMap();
 
-    private final Map<String, ClassVersions> classes = Maps.newHashMap();
+    private final Map<String, ClassVersions> classes = Maps.newConcurrentMap();
+
+    // when present, class data is read from this index instead of 'classes'
+    private transient volatile ModIndex index;
+
+    // index file that is not opened yet - mods loaded from cache manifest open index on first class lookup
+    private transient volatile File pendingIndex;
+
+    // version -> class -> element -> is element present in class or its parents
+    private transient volatile Map<Integer, Map<String, Map<TypedElement, Boolean>>> resolutionCache;
 
     public ModInfo(String pkgPrefix, String modId) {
         this.pkgPrefix = pkgPrefix;
         this.modId = modId;
     }
 
-    public ModRegistrationContext registerVersion(String version) {
+    private void addStoredVersion(String version, JarFingerprint source) {
+        allVersions.add(version);
+        versionNames.add(version);
+        if (source != null)
+            versionSources.put(version, source);
+    }
+
+    public static ModInfo fromIndex(ModIndex index) {
+        final ModInfo result = new ModInfo(index.getPkgPrefix(), index.getModId());
+        for (int i = 0; i < index.getVersionCount(); i++)
+            result.addStoredVersion(index.getVersion(i), index.getVersionSource(i));
+
+        result.index = index;
+        return result;
+    }
+
+    public static ModInfo fromManifest(CacheManifest.ModEntry entry, File indexFile) {
+        final ModInfo result = new ModInfo(entry.pkgPrefix, entry.mod);
+        for (CacheManifest.VersionEntry version : entry.versions) {
+            final JarFingerprint source = version.file != null
+                    ? new JarFingerprint(version.file, version.size, version.lastModified, version.hash)
+                    : null;
+            result.addStoredVersion(version.version, source);
+        }
+
+        result.pendingIndex = indexFile;
+        return result;
+    }
+
+    private ModIndex getIndex() {
+        if (pendingIndex != null) {
+            synchronized (this) {
+                final File indexFile = pendingIndex;
+                if (indexFile != null) {
+                    logger.info("Loading class data of mod {} from {}", modId, indexFile.getAbsolutePath());
+                    final ModIndex loadedIndex;
+                    try {
+                        loadedIndex = ModIndex.open(indexFile);
+                    } catch (IOException e) {
+                        throw new RuntimeException(String.format("Failed to load class data of mod %s from %s", modId, indexFile.getAbsolutePath()), e);
+                    }
+
+                    final List<String> indexVersions = Lists.newArrayList();
+                    for (int i = 0; i < loadedIndex.getVersionCount(); i++)
+                        indexVersions.add(loadedIndex.getVersion(i));
+                    Preconditions.checkState(indexVersions.equals(versionNames),
+                            "Versions of mod %s in %s (%s) do not match cache manifest (%s)", modId, indexFile.getAbsolutePath(), indexVersions, versionNames);
+
+                    index = loadedIndex;
+                    pendingIndex = null;
+                }
+            }
+        }
+
+        return index;
+    }
+
+    /**
+     * Unmaps index file, so it can be replaced or deleted. Mod must not be used by other threads at the same time.
+     * Mods with class data on heap are not affected.
+     * @param reopenFrom file with the same class data, opened on next lookup, or null when mod is discarded
+     */
+    public synchronized void releaseIndex(File reopenFrom) {
+        final ModIndex openIndex = index;
+        if (openIndex != null || pendingIndex != null) {
+            index = null;
+            pendingIndex = reopenFrom;
+            if (openIndex != null)
+                openIndex.close();
+        }
+    }
+
+    // index is read-only, so modifications need all class data on heap
+    private void loadFromIndex() {
+        final ModIndex index = getIndex();
+        if (index == null)
+            return;
+
+        index.forEachClass((clsName, cls) -> {
+            final ClassVersions classVersions = new ClassVersions();
+            cls.forEachSignature((signature, versions) -> {
+                final ClassVersion loaded = new ClassVersion(signature.getSuperClass(), signature.getInterfaces(), signature.getElements());
+                for (int version = versions.nextSetBit(0); version >= 0; version = versions.nextSetBit(version + 1))
+                    classVersions.createForVersion(version, loaded);
+            });
+            classes.put(clsName, classVersions);
+        });
+
+        // loaded data holds only heap copies, so mapping can be released right away
+        this.index = null;
+        index.close();
+    }
+
+    public void forEachClass(BiConsumer<String, VersionedClass> consumer) {
+        final ModIndex index = getIndex();
+        if (index != null)
+            index.forEachClass(consumer);
+        else
+            classes.forEach(consumer);
+    }
+
+    private VersionedClass getClass(String cls) {
+        final ModIndex index = getIndex();
+        return index != null ? index.findClass(cls) : classes.get(cls);
+    }
+
+    public synchronized ModRegistrationContext registerVersion(String version) {
+        loadFromIndex();
         final boolean isNew = allVersions.add(version);
         Preconditions.checkState(isNew, "Duplicate version '%s' in mod %s", version, modId);
+        final int versionIndex = versionNames.size();
+        versionNames.add(version);
+        isUpdated = true;
+        resolutionCache = null;
+        return new ModRegistrationContext(versionIndex);
+    }
+
+    public synchronized void removeVersions(Collection<String> versions) {
+        if (versions.isEmpty())
+            return;
+
+        loadFromIndex();
+
+        // keep version indices dense, so bitmasks can still be flipped over whole version range
+        final int[] oldToNew = new int[versionNames.size()];
+        final List<String> remainingVersions = Lists.newArrayList();
+        for (int i = 0; i < oldToNew.length; i++) {
+            final String version = versionNames.get(i);
+            if (versions.contains(version)) {
+                oldToNew[i] = -1;
+            } else {
+                oldToNew[i] = remainingVersions.size();
+                remainingVersions.add(version);
+            }
+        }
+
+        versionNames.clear();
+        versionNames.addAll(remainingVersions);
+        allVersions.removeAll(versions);
+        versionSources.keySet().removeAll(versions);
+
+        classes.values().removeIf(cls -> !cls.remapVersions(oldToNew));
+
+        isUpdated = true;
+        resolutionCache = null;
+    }
+
+    public JarFingerprint getVersionSource(String version) {
+        return versionSources.get(version);
+    }
+
+    public synchronized void updateVersionSource(String version, JarFingerprint source) {
+        Preconditions.checkState(allVersions.contains(version), "Unknown version '%s' in mod %s", version, modId);
+        versionSources.put(version, source);
         isUpdated = true;
-        return new ModRegistrationContext(version);
     }
 
     public boolean hasVersion(String version) {
@@ -105,55 +408,116 @@ public class ModInfo implements Serializable {
         return allVersions;
     }
 
+    public int versionCount() {
+        return versionNames.size();
+    }
+
+    public String getVersion(int versionIndex) {
+        return versionNames.get(versionIndex);
+    }
+
     public boolean isUpdated() {
         return isUpdated;
     }
 
+    public void markStored() {
+        isUpdated = false;
+    }
+
+    // forces mod loaded from old cache format to be stored again
+    public void markLegacy() {
+        isUpdated = true;
+    }
+
     public boolean matchPackage(String pkg) {
         return pkg.startsWith(pkgPrefix);
     }
 
-    public Set<String> findMatchingVersions(String cls) {
-        final ClassVersions classVersions = classes.get(cls);
-        return classVersions != null ? classVersions.versions.keySet() : Sets.newHashSet();
+    public BitSet findMatchingVersions(String cls) {
+        findMatchingVersionsCalls.increment();
+        final VersionedClass classVersions = getClass(cls);
+        return classVersions != null ? classVersions.getVersions() : new BitSet();
+    }
+
+    private Map<TypedElement, Boolean> getResolutionCache(int version, String cls) {
+        Map<Integer, Map<String, Map<TypedElement, Boolean>>> cache = resolutionCache;
+        if (cache == null) {
+            synchronized (this) {
+                cache = resolutionCache;
+                if (cache == null) {
+                    cache = Maps.newConcurrentMap();
+                    resolutionCache = cache;
+                }
+            }
+        }
+
+        return cache.computeIfAbsent(version, k -> Maps.newConcurrentMap())
+                .computeIfAbsent(cls, k -> Maps.newConcurrentMap());
     }
 
-    private boolean isElementInVersion(String cls, TypedElement element, String version) {
+    private boolean isElementInVersion(String cls, TypedElement element, int version) {
         if (cls.startsWith("java."))
             return LibClassChecker.isElementInClass(cls, element);
 
-        final ClassVersions classVersions = classes.get(cls);
+        final VersionedClass classVersions = getClass(cls);
         if (classVersions == null)
             return false;
 
-        final ClassVersion classVersion = classVersions.getForVersion(version);
+        final ClassSignature classVersion = classVersions.getForVersion(version);
         if (classVersion == null)
             return false;
 
-        if (classVersion.elements.contains(element))
+        if (classVersion.hasElement(element))
             return true;
 
-        if (isElementInVersion(classVersion.superClass, element, version))
+        return isInheritedElementInVersion(cls, classVersion, element, version);
+    }
+
+    private boolean isInheritedElementInVersion(String cls, ClassSignature classVersion, TypedElement element, int version) {
+        final Map<TypedElement, Boolean> cache = getResolutionCache(version, cls);
+        final Boolean cachedResult = cache.get(element);
+        if (cachedResult != null)
+            return cachedResult;
+
+        final boolean result = isElementInParents(classVersion, element, version);
+        cache.put(element, result);
+        return result;
+    }
+
+    private boolean isElementInParents(ClassSignature classVersion, TypedElement element, int version) {
+        final String superClass = classVersion.getSuperClass();
+        if (superClass != null && isElementInVersion(superClass, element, version))
             return true;
 
-        for (String intf : classVersion.interfaces)
+        for (String intf : classVersion.getInterfaces())
             if (isElementInVersion(intf, element, version))
                 return true;
 
         return false;
     }
 
-    private Set<String> selectClassVersions(String cls, TypedElement element) {
-        final ClassVersions classVersions = classes.get(cls);
+    private BitSet selectClassVersions(String cls, TypedElement element) {
+        final VersionedClass classVersions = getClass(cls);
         if (classVersions == null)
-            return Sets.newHashSet();
-
-        return classVersions.versions.keySet().stream()
-                .filter(version -> isElementInVersion(cls, element, version))
-                .collect(Collectors.toSet());
+            return new BitSet();
+
+        final BitSet result = new BitSet();
+        classVersions.forEachSignature((signature, versions) -> {
+            // direct members are same for all versions sharing signature, only inherited ones need per-version check
+            if (signature.hasElement(element)) {
+                result.or(versions);
+            } else {
+                for (int version = versions.nextSetBit(0); version >= 0; version = versions.nextSetBit(version + 1))
+                    if (isInheritedElementInVersion(cls, signature, element, version))
+                        result.set(version);
+            }
+        });
+
+        return result;
     }
 
-    public Set<String> findMatchingVersions(String cls, ElementType type, String name, String desc) {
-        return selectClassVersions(cls, new TypedElement(type, name, desc));
+    public BitSet findMatchingVersions(String cls, ElementType type, String name, String desc) {
+        findMatchingVersionsCalls.increment();
+        return selectClassVersions(cls, TypedElement.of(type, name, desc));
     }
 }
@@ -0,0 +1,247 @@
+package openmods.depcheck;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.UnsupportedEncodingException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.URLDecoder;
+import java.util.*;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.zip.ZipException;
+
+import openmods.depcheck.utils.ElementType;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.google.common.base.Charsets;
+import com.google.common.base.Splitter;
+import com.google.common.base.Strings;
+import com.google.common.collect.Lists;
+import com.google.common.collect.Maps;
+import com.google.common.io.ByteStreams;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+import com.google.gson.Gson;
+import com.google.gson.GsonBuilder;
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
+
+/**
+ * Local HTTP service answering queries against source dependencies loaded once on startup.
+ * <ul>
+ * <li>{@code GET /mods} - all mods with their versions</li>
+ * <li>{@code GET /class?name=<class>} - versions of owning mod that contain class</li>
+ * <li>{@code GET /element?class=<class>&type=<field|method>&name=<name>&desc=<desc>} - versions of owning mod that contain element</li>
+ * <li>{@code POST /check?name=<jar name>&format=<jsonl|binary>} - checks uploaded target jar, response is same as {@link ResultExporter} output</li>
+ * </ul>
+ */
+public class QueryServer {
+
+    private static final Logger logger = LoggerFactory.getLogger(QueryServer.class);
+
+    private static final Gson GSON = new GsonBuilder().disableHtmlEscaping().create();
+
+    private static class QueryException extends RuntimeException {
+        private static final long serialVersionUID = 4286195427614937617L;
+
+        public final int status;
+
+        public QueryException(int status, String message) {
+            super(message);
+            this.status = status;
+        }
+    }
+
+    private interface QueryHandler {
+        public void handle(HttpExchange exchange, Map<String, String> params) throws IOException;
+    }
+
+    private static class ModEntry {
+        public String mod;
+        public String pkgPrefix;
+        public List<String> versions;
+    }
+
+    private static class LookupResult {
+        public String mod;
+        public String cls;
+        public String type;
+        public String name;
+        public String desc;
+        public List<String> present;
+        public List<String> missing;
+    }
+
+    private final File topDir;
+
+    private final SourceDependencies availableDependencies;
+
+    public QueryServer(File topDir, SourceDependencies availableDependencies) {
+        this.topDir = topDir;
+        this.availableDependencies = availableDependencies;
+    }
+
+    public void start(int port, int threads) throws IOException {
+        final HttpServer server = HttpServer.create(new InetSocketAddress(InetAddress.getLoopbackAddress(), port), 0);
+        server.createContext("/mods", wrap("GET", this::handleMods));
+        server.createContext("/class", wrap("GET", this::handleClass));
+        server.createContext("/element", wrap("GET", this::handleElement));
+        server.createContext("/check", wrap("POST", this::handleCheck));
+
+        final ExecutorService executor = Executors.newFixedThreadPool(Math.max(threads, 1),
+                new ThreadFactoryBuilder().setNameFormat("query-%d").build());
+        server.setExecutor(executor);
+        server.start();
+        logger.info("Query server listening on {}", server.getAddress());
+    }
+
+    private static Map<String, String> parseQuery(String query) {
+        final Map<String, String> result = Maps.newHashMap();
+        if (query != null) {
+            for (String param : Splitter.on('&').omitEmptyStrings().split(query)) {
+                final int separator = param.indexOf('=');
+                try {
+                    if (separator >= 0)
+                        result.put(URLDecoder.decode(param.substring(0, separator), "UTF-8"), URLDecoder.decode(param.substring(separator + 1), "UTF-8"));
+                    else
+                        result.put(URLDecoder.decode(param, "UTF-8"), "");
+                } catch (UnsupportedEncodingException | IllegalArgumentException e) {
+                    throw new QueryException(400, "Malformed query parameter: " + param);
+                }
+            }
+        }
+        return result;
+    }
+
+    private static String getParam(Map<String, String> params, String name) {
+        final String result = params.get(name);
+        if (Strings.isNullOrEmpty(result))
+            throw new QueryException(400, "Missing parameter: " + name);
+        return result;
+    }
+
+    private static void respond(HttpExchange exchange, int status, String contentType, byte[] body) throws IOException {
+        exchange.getResponseHeaders().set("Content-Type", contentType);
+        exchange.sendResponseHeaders(status, body.length);
+        try (OutputStream os = exchange.getResponseBody()) {
+            os.write(body);
+        }
+    }
+
+    private static void respondJson(HttpExchange exchange, int status, Object value) throws IOException {
+        respond(exchange, status, "application/json; charset=UTF-8", GSON.toJson(value).getBytes(Charsets.UTF_8));
+    }
+
+    private static boolean isResponseStarted(HttpExchange exchange) {
+        return exchange.getResponseCode() != -1;
+    }
+
+    private static HttpHandler wrap(String method, QueryHandler handler) {
+        return exchange -> {
+            try {
+                if (!method.equals(exchange.getRequestMethod()))
+                    throw new QueryException(405, "Method not allowed: " + exchange.getRequestMethod());
+
+                handler.handle(exchange, parseQuery(exchange.getRequestURI().getRawQuery()));
+            } catch (QueryException e) {
+                if (!isResponseStarted(exchange))
+                    respondJson(exchange, e.status, Collections.singletonMap("error", e.getMessage()));
+            } catch (Exception e) {
+                logger.warn("Failed to handle request {}", exchange.getRequestURI(), e);
+                // when response is already streamed, exchange is just closed (body will be truncated)
+                if (!isResponseStarted(exchange))
+                    respondJson(exchange, 500, Collections.singletonMap("error", String.valueOf(e)));
+            } finally {
+                exchange.close();
+            }
+        };
+    }
+
+    private void handleMods(HttpExchange exchange, Map<String, String> params) throws IOException {
+        final List<ModEntry> result = Lists.newArrayList();
+        for (String modId : new TreeSet<>(availableDependencies.getAllModIds())) {
+            final ModInfo mod = availableDependencies.getMod(modId);
+            final ModEntry entry = new ModEntry();
+            entry.mod = mod.modId;
+            entry.pkgPrefix = mod.pkgPrefix;
+            entry.versions = Lists.newArrayList();
+            for (int i = 0; i < mod.versionCount(); i++)
+                entry.versions.add(mod.getVersion(i));
+            result.add(entry);
+        }
+        respondJson(exchange, 200, result);
+    }
+
+    private ModInfo findMod(String cls) {
+        return availableDependencies.identifyMod(cls).orElseThrow(() -> new QueryException(404, "Class " + cls + " does not belong to any known mod"));
+    }
+
+    private static LookupResult createLookupResult(ModInfo mod, String cls, BitSet present) {
+        final LookupResult result = new LookupResult();
+        result.mod = mod.modId;
+        result.cls = cls;
+        result.present = Lists.newArrayList();
+        result.missing = Lists.newArrayList();
+        for (int i = 0; i < mod.versionCount(); i++)
+            (present.get(i) ? result.present : result.missing).add(mod.getVersion(i));
+        return result;
+    }
+
+    private void handleClass(HttpExchange exchange, Map<String, String> params) throws IOException {
+        final String cls = getParam(params, "name");
+        final ModInfo mod = findMod(cls);
+        respondJson(exchange, 200, createLookupResult(mod, cls, mod.findMatchingVersions(cls)));
+    }
+
+    private void handleElement(HttpExchange exchange, Map<String, String> params) throws IOException {
+        final String cls = getParam(params, "class");
+        final String typeName = getParam(params, "type");
+        final String name = getParam(params, "name");
+        final String desc = getParam(params, "desc");
+
+        final ElementType type;
+        try {
+            type = ElementType.valueOf(typeName.toUpperCase(Locale.ROOT));
+        } catch (IllegalArgumentException e) {
+            throw new QueryException(400, "Invalid element type: " + typeName);
+        }
+
+        final ModInfo mod = findMod(cls);
+        final LookupResult result = createLookupResult(mod, cls, mod.findMatchingVersions(cls, type, name, desc));
+        result.type = type.name();
+        result.name = name;
+        result.desc = desc;
+        respondJson(exchange, 200, result);
+    }
+
+    private void handleCheck(HttpExchange exchange, Map<String, String> params) throws IOException {
+        final String jarName = params.getOrDefault("name", "upload.jar");
+        final ResultExporter.Format format;
+        try {
+            format = ResultExporter.Format.fromId(params.getOrDefault("format", ResultExporter.Format.JSON_LINES.id));
+        } catch (IllegalArgumentException e) {
+            throw new QueryException(400, e.getMessage());
+        }
+
+        final byte[] data;
+        try (InputStream input = exchange.getRequestBody()) {
+            data = ByteStreams.toByteArray(input);
+        }
+
+        final DependencyCollector collector = new DependencyCollector(availableDependencies);
+        try {
+            DependencyChecker.createTargetParser(topDir, availableDependencies).acceptJar(jarName, data, collector);
+        } catch (ZipException e) {
+            throw new QueryException(400, "Invalid jar: " + e.getMessage());
+        }
+
+        exchange.getResponseHeaders().set("Content-Type", format == ResultExporter.Format.BINARY ? "application/octet-stream" : "application/x-ndjson; charset=UTF-8");
+        exchange.sendResponseHeaders(200, 0);
+        new ResultExporter().export(exchange.getResponseBody(), format, availableDependencies, collector.getResults());
+    }
+}
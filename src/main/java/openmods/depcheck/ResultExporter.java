@@ -0,0 +1,363 @@
+package openmods.depcheck;
+
+import java.io.*;
+import java.util.BitSet;
+import java.util.List;
+import java.util.Map;
+
+import openmods.depcheck.DependencyResolveResult.MissingDependencySink;
+import openmods.depcheck.utils.Metrics;
+import openmods.depcheck.utils.TypedElement;
+
+import com.google.common.base.Charsets;
+import com.google.common.base.Throwables;
+import com.google.common.collect.Lists;
+import com.google.common.collect.Maps;
+import com.google.common.collect.Ordering;
+import com.google.gson.Gson;
+import com.google.gson.GsonBuilder;
+
+/**
+ * Machine readable export of results, records are written while results are visited.
+ * Every target is followed by matrix records (per source mod: incompatible versions). Readers interested only in compatibility can skip other records without decoding them:
+ * JSON lines start with record type, binary records are prefixed with tag and payload length.
+ */
+public class ResultExporter {
+
+    public enum Format {
+        JSON_LINES("jsonl", "results.jsonl"),
+        BINARY("binary", "results.bin");
+
+        public final String id;
+
+        public final String fileName;
+
+        private Format(String id, String fileName) {
+            this.id = id;
+            this.fileName = fileName;
+        }
+
+        public static Format fromId(String id) {
+            for (Format format : values())
+                if (format.id.equals(id))
+                    return format;
+
+            throw new IllegalArgumentException("Unknown export format: " + id);
+        }
+    }
+
+    private interface RecordWriter extends Closeable {
+        public void writeMod(ModInfo mod) throws IOException;
+
+        public void writeTarget(String target) throws IOException;
+
+        public void writeMissingClass(String targetCls, ModInfo mod, String sourceCls, BitSet versions) throws IOException;
+
+        public void writeMissingElement(String targetCls, ModInfo mod, String sourceCls, TypedElement element, BitSet versions) throws IOException;
+
+        public void writeMatrix(ModInfo mod, BitSet versions) throws IOException;
+    }
+
+    private interface RecordCall {
+        public void run(ModInfo mod) throws IOException;
+    }
+
+    private static final Gson GSON = new GsonBuilder().disableHtmlEscaping().create();
+
+    private static class JsonRecord {
+        public String type;
+        public String target;
+        public String targetClass;
+        public String mod;
+        public String sourceClass;
+        public String elementType;
+        public String name;
+        public String desc;
+        public List<String> versions;
+
+        public JsonRecord(String type) {
+            this.type = type;
+        }
+    }
+
+    private static List<String> versionNames(ModInfo mod, BitSet versions) {
+        final List<String> result = Lists.newArrayList();
+        for (int version = versions.nextSetBit(0); version >= 0; version = versions.nextSetBit(version + 1))
+            result.add(mod.getVersion(version));
+        return result;
+    }
+
+    // one JSON object per line
+    private static class JsonLinesWriter implements RecordWriter {
+        private final Writer writer;
+
+        private String currentTarget;
+
+        public JsonLinesWriter(OutputStream os) {
+            this.writer = new BufferedWriter(new OutputStreamWriter(os, Charsets.UTF_8));
+        }
+
+        private void write(JsonRecord record) throws IOException {
+            GSON.toJson(record, writer);
+            writer.write('\n');
+        }
+
+        @Override
+        public void writeMod(ModInfo mod) throws IOException {
+            final JsonRecord record = new JsonRecord("mod");
+            record.mod = mod.modId;
+            record.versions = Lists.newArrayList();
+            for (int i = 0; i < mod.versionCount(); i++)
+                record.versions.add(mod.getVersion(i));
+            write(record);
+        }
+
+        @Override
+        public void writeTarget(String target) throws IOException {
+            currentTarget = target;
+            final JsonRecord record = new JsonRecord("target");
+            record.target = target;
+            write(record);
+        }
+
+        @Override
+        public void writeMissingClass(String targetCls, ModInfo mod, String sourceCls, BitSet versions) throws IOException {
+            final JsonRecord record = new JsonRecord("class");
+            record.target = currentTarget;
+            record.targetClass = targetCls;
+            record.mod = mod.modId;
+            record.sourceClass = sourceCls;
+            record.versions = versionNames(mod, versions);
+            write(record);
+        }
+
+        @Override
+        public void writeMissingElement(String targetCls, ModInfo mod, String sourceCls, TypedElement element, BitSet versions) throws IOException {
+            final JsonRecord record = new JsonRecord("element");
+            record.target = currentTarget;
+            record.targetClass = targetCls;
+            record.mod = mod.modId;
+            record.sourceClass = sourceCls;
+            record.elementType = element.type.name();
+            record.name = element.name;
+            record.desc = element.desc;
+            record.versions = versionNames(mod, versions);
+            write(record);
+        }
+
+        @Override
+        public void writeMatrix(ModInfo mod, BitSet versions) throws IOException {
+            final JsonRecord record = new JsonRecord("matrix");
+            record.target = currentTarget;
+            record.mod = mod.modId;
+            record.versions = versionNames(mod, versions);
+            write(record);
+        }
+
+        @Override
+        public void close() throws IOException {
+            writer.close();
+        }
+    }
+
+    // records are tag, varint payload length and payload with varint fields
+    // strings are interned - every string is written once, in STRING record preceding its first use
+    private static class BinaryWriter implements RecordWriter {
+        private static final int MAGIC = 0x44435258;
+        private static final int FORMAT_VERSION = 2;
+
+        private static final int TAG_END = 0;
+        private static final int TAG_STRING = 1;
+        private static final int TAG_MOD = 2;
+        private static final int TAG_TARGET = 3;
+        private static final int TAG_MISSING_CLASS = 4;
+        private static final int TAG_MISSING_ELEMENT = 5;
+        private static final int TAG_MATRIX = 6;
+
+        private final DataOutputStream output;
+
+        // payload of record being written
+        private final ByteArrayOutputStream recordBuffer = new ByteArrayOutputStream();
+
+        private final DataOutputStream record = new DataOutputStream(recordBuffer);
+
+        private final Map<String, Integer> strings = Maps.newHashMap();
+
+        private final Map<String, Integer> mods = Maps.newHashMap();
+
+        public BinaryWriter(OutputStream os) throws IOException {
+            this.output = new DataOutputStream(new BufferedOutputStream(os));
+            output.writeInt(MAGIC);
+            output.writeInt(FORMAT_VERSION);
+        }
+
+        private static void writeVarInt(DataOutput output, int value) throws IOException {
+            while ((value & ~0x7F) != 0) {
+                output.writeByte((value & 0x7F) | 0x80);
+                value >>>= 7;
+            }
+            output.writeByte(value);
+        }
+
+        private static void writeVarLong(DataOutput output, long value) throws IOException {
+            while ((value & ~0x7FL) != 0) {
+                output.writeByte((int)(value & 0x7F) | 0x80);
+                value >>>= 7;
+            }
+            output.writeByte((int)value);
+        }
+
+        private void writeVarInt(int value) throws IOException {
+            writeVarInt(record, value);
+        }
+
+        private void writeRecord(int tag) throws IOException {
+            output.writeByte(tag);
+            writeVarInt(output, recordBuffer.size());
+            recordBuffer.writeTo(output);
+            recordBuffer.reset();
+        }
+
+        // must be called before any field of current record is written, since STRING record is written immediately
+        private int intern(String value) throws IOException {
+            Integer id = strings.get(value);
+            if (id == null) {
+                id = strings.size();
+                strings.put(value, id);
+                record.writeUTF(value);
+                writeRecord(TAG_STRING);
+            }
+            return id;
+        }
+
+        private void writeMask(BitSet versions) throws IOException {
+            final long[] words = versions.toLongArray();
+            writeVarInt(words.length);
+            for (long word : words)
+                writeVarLong(record, word);
+        }
+
+        @Override
+        public void writeMod(ModInfo mod) throws IOException {
+            final int modId = intern(mod.modId);
+            final int[] versionIds = new int[mod.versionCount()];
+            for (int i = 0; i < versionIds.length; i++)
+                versionIds[i] = intern(mod.getVersion(i));
+
+            mods.put(mod.modId, mods.size());
+            writeVarInt(modId);
+            writeVarInt(versionIds.length);
+            for (int versionId : versionIds)
+                writeVarInt(versionId);
+            writeRecord(TAG_MOD);
+        }
+
+        @Override
+        public void writeTarget(String target) throws IOException {
+            final int targetId = intern(target);
+            writeVarInt(targetId);
+            writeRecord(TAG_TARGET);
+        }
+
+        @Override
+        public void writeMissingClass(String targetCls, ModInfo mod, String sourceCls, BitSet versions) throws IOException {
+            final int targetClsId = intern(targetCls);
+            final int sourceClsId = intern(sourceCls);
+            writeVarInt(targetClsId);
+            writeVarInt(mods.get(mod.modId));
+            writeVarInt(sourceClsId);
+            writeMask(versions);
+            writeRecord(TAG_MISSING_CLASS);
+        }
+
+        @Override
+        public void writeMissingElement(String targetCls, ModInfo mod, String sourceCls, TypedElement element, BitSet versions) throws IOException {
+            final int targetClsId = intern(targetCls);
+            final int sourceClsId = intern(sourceCls);
+            final int nameId = intern(element.name);
+            final int descId = intern(element.desc);
+            writeVarInt(targetClsId);
+            writeVarInt(mods.get(mod.modId));
+            writeVarInt(sourceClsId);
+            record.writeByte(element.type.ordinal());
+            writeVarInt(nameId);
+            writeVarInt(descId);
+            writeMask(versions);
+            writeRecord(TAG_MISSING_ELEMENT);
+        }
+
+        @Override
+        public void writeMatrix(ModInfo mod, BitSet versions) throws IOException {
+            writeVarInt(mods.get(mod.modId));
+            writeMask(versions);
+            writeRecord(TAG_MATRIX);
+        }
+
+        @Override
+        public void close() throws IOException {
+            writeRecord(TAG_END);
+            output.close();
+        }
+    }
+
+    private static RecordWriter createWriter(Format format, OutputStream os) throws IOException {
+        switch (format) {
+            case JSON_LINES:
+                return new JsonLinesWriter(os);
+            case BINARY:
+                return new BinaryWriter(os);
+            default:
+                throw new IllegalArgumentException(format.toString());
+        }
+    }
+
+    public void export(File dir, Format format, SourceDependencies availableDependencies, List<DependencyResolveResult> results) {
+        try (OutputStream output = new FileOutputStream(new File(dir, format.fileName))) {
+            export(output, format, availableDependencies, results);
+        } catch (IOException e) {
+            throw Throwables.propagate(e);
+        }
+    }
+
+    // stream is closed after export
+    public void export(OutputStream output, Format format, SourceDependencies availableDependencies, List<DependencyResolveResult> results) {
+        final Metrics.Phase phase = Metrics.start("export", format.id);
+        try (RecordWriter writer = createWriter(format, output)) {
+            for (String modId : Ordering.natural().sortedCopy(availableDependencies.getAllModIds()))
+                writer.writeMod(availableDependencies.getMod(modId));
+
+            for (DependencyResolveResult result : results) {
+                writer.writeTarget(result.jarFile.getName());
+
+                final Map<String, BitSet> incompatibleVersions = Maps.newTreeMap();
+                result.visit(new MissingDependencySink() {
+                    private void write(String sourceMod, RecordCall call, BitSet versions) {
+                        try {
+                            call.run(availableDependencies.getMod(sourceMod));
+                        } catch (IOException e) {
+                            throw Throwables.propagate(e);
+                        }
+                        incompatibleVersions.computeIfAbsent(sourceMod, k -> new BitSet()).or(versions);
+                    }
+
+                    @Override
+                    public void acceptMissingClass(String targetCls, String sourceMod, String sourceCls, BitSet versions) {
+                        write(sourceMod, mod -> writer.writeMissingClass(targetCls, mod, sourceCls, versions), versions);
+                    }
+
+                    @Override
+                    public void acceptMissingElement(String targetCls, String sourceMod, String sourceCls, TypedElement sourceElement, BitSet versions) {
+                        write(sourceMod, mod -> writer.writeMissingElement(targetCls, mod, sourceCls, sourceElement, versions), versions);
+                    }
+                });
+
+                for (Map.Entry<String, BitSet> e : incompatibleVersions.entrySet())
+                    writer.writeMatrix(availableDependencies.getMod(e.getKey()), e.getValue());
+            }
+        } catch (IOException e) {
+            throw Throwables.propagate(e);
+        } finally {
+            phase.end();
+        }
+    }
+}
@@ -6,22 +6,34 @@ import j2html.tags.Tag;
 
 import java.io.*;
 import java.util.*;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Consumer;
+import java.util.function.Function;
 import java.util.stream.Collectors;
+import java.util.stream.IntStream;
 
 import openmods.depcheck.DependencyResolveResult.MissingDependencySink;
+import openmods.depcheck.utils.Metrics;
+import openmods.depcheck.utils.ParallelExecutor;
 import openmods.depcheck.utils.TypedElement;
 
 import org.apache.maven.artifact.versioning.ArtifactVersion;
 import org.apache.maven.artifact.versioning.DefaultArtifactVersion;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
 
 import com.google.common.base.Charsets;
 import com.google.common.base.Joiner;
 import com.google.common.base.Throwables;
 import com.google.common.collect.*;
+import com.google.common.io.Files;
+import com.google.common.net.UrlEscapers;
 
 public class ResultPrinter {
 
-    private static final String STYLE =
+    private static final Logger logger = LoggerFactory.getLogger(ResultPrinter.class);
+
+    private static final String TABLE_STYLE =
             "table {" +
                     "     border-collapse: collapse;" +
                     "}" +
@@ -34,14 +46,27 @@ public class ResultPrinter {
                     "}" +
                     ".g {" +
                     "    color: green;" +
-                    "}" +
-                    "div.missing {" +
-                    "    display: none;" +
-                    "}" +
-                    "div.missing:target {" +
-                    "    display: block;" +
                     "}";
 
+    private static final String STYLE = TABLE_STYLE +
+            "div.missing {" +
+            "    display: none;" +
+            "}" +
+            "div.missing:target {" +
+            "    display: block;" +
+            "}";
+
+    // details are loaded to frame only when cell is clicked
+    private static final String SPLIT_STYLE = TABLE_STYLE +
+            "iframe {" +
+            "    width: 100%;" +
+            "    height: 40em;" +
+            "    border: none;" +
+            "}";
+
+    // list of source mods written to split report, read on next run to find pages of removed mods
+    private static final String MOD_LIST_FILE = ".mods";
+
     private static class MissingSourceDependencies {
         public final Set<String> missingClasses = Sets.newHashSet();
         public final SetMultimap<String, TypedElement> missingElements = HashMultimap.create();
@@ -55,11 +80,40 @@ public class ResultPrinter {
         }
     }
 
+    // versions of single mod, parsed and sorted once - everything else uses version indices
+    private static class VersionOrder {
+        private final ArtifactVersion[] versions;
+
+        // version indices, sorted by version
+        public final int[] sortedIndices;
+
+        public VersionOrder(ModInfo mod) {
+            final int count = mod.versionCount();
+            this.versions = new ArtifactVersion[count];
+            for (int i = 0; i < count; i++)
+                versions[i] = new DefaultArtifactVersion(mod.getVersion(i));
+
+            this.sortedIndices = IntStream.range(0, count).boxed()
+                    .sorted(Comparator.comparing(i -> versions[i]))
+                    .mapToInt(Integer::intValue).toArray();
+        }
+
+        public ArtifactVersion get(int index) {
+            return versions[index];
+        }
+    }
+
     private static class SourceModCompatibilityTable {
-        // (target, version) -> missing stuff
-        public final Table<File, ArtifactVersion, MissingTargetDependencies> missingDependencies = HashBasedTable.create();
+        public final VersionOrder versions;
+
+        // (target, version index) -> missing stuff
+        public final Table<File, Integer, MissingTargetDependencies> missingDependencies = HashBasedTable.create();
+
+        public SourceModCompatibilityTable(VersionOrder versions) {
+            this.versions = versions;
+        }
 
-        public MissingTargetDependencies getOrCreate(File target, ArtifactVersion sourceVersion) {
+        public MissingTargetDependencies getOrCreate(File target, int sourceVersion) {
             MissingTargetDependencies result = missingDependencies.get(target, sourceVersion);
             if (result == null) {
                 result = new MissingTargetDependencies();
@@ -68,35 +122,53 @@ public class ResultPrinter {
 
             return result;
         }
+
+        // ordered by target name, then by version
+        public List<Table.Cell<File, Integer, MissingTargetDependencies>> getSortedCells() {
+            final List<Table.Cell<File, Integer, MissingTargetDependencies>> result = Lists.newArrayList();
+            final List<File> targets = Lists.newArrayList(missingDependencies.rowKeySet());
+            targets.sort(Comparator.comparing(File::getName));
+            for (File target : targets) {
+                final Map<Integer, MissingTargetDependencies> row = missingDependencies.row(target);
+                for (int version : versions.sortedIndices) {
+                    final MissingTargetDependencies value = row.get(version);
+                    if (value != null)
+                        result.add(Tables.immutableCell(target, version, value));
+                }
+            }
+            return result;
+        }
     }
 
     private static class CompatibilityData {
+        private final SourceDependencies availableDependencies;
         private final Set<File> allTargets = Sets.newHashSet();
         private final Map<String, SourceModCompatibilityTable> modCompatibilityTable = Maps.newHashMap();
 
+        public CompatibilityData(SourceDependencies availableDependencies) {
+            this.availableDependencies = availableDependencies;
+        }
+
         private SourceModCompatibilityTable get(String sourceMod) {
-            return modCompatibilityTable.computeIfAbsent(sourceMod, k -> new SourceModCompatibilityTable());
+            return modCompatibilityTable.computeIfAbsent(sourceMod, k -> new SourceModCompatibilityTable(new VersionOrder(availableDependencies.getMod(sourceMod))));
         }
 
         private MissingDependencySink createForTarget(File target) {
             return new MissingDependencySink() {
                 @Override
-                public void acceptMissingClass(String targetCls, String sourceMod, String sourceCls, Set<String> versions) {
+                public void acceptMissingClass(String targetCls, String sourceMod, String sourceCls, BitSet versions) {
                     final SourceModCompatibilityTable modDeps = get(sourceMod);
 
-                    for (String version : versions) {
-                        final ArtifactVersion v = new DefaultArtifactVersion(version);
-                        modDeps.getOrCreate(target, v).get(targetCls).missingClasses.add(sourceCls);
-                    }
+                    for (int version = versions.nextSetBit(0); version >= 0; version = versions.nextSetBit(version + 1))
+                        modDeps.getOrCreate(target, version).get(targetCls).missingClasses.add(sourceCls);
                 }
 
                 @Override
-                public void acceptMissingElement(String targetCls, String sourceMod, String sourceCls, TypedElement sourceElement, Set<String> versions) {
+                public void acceptMissingElement(String targetCls, String sourceMod, String sourceCls, TypedElement sourceElement, BitSet versions) {
                     final SourceModCompatibilityTable modDeps = get(sourceMod);
-                    for (String version : versions) {
-                        final ArtifactVersion v = new DefaultArtifactVersion(version);
-                        modDeps.getOrCreate(target, v).get(targetCls).missingElements.put(sourceCls, sourceElement);
-                    }
+
+                    for (int version = versions.nextSetBit(0); version >= 0; version = versions.nextSetBit(version + 1))
+                        modDeps.getOrCreate(target, version).get(targetCls).missingElements.put(sourceCls, sourceElement);
                 }
             };
         }
@@ -107,10 +179,15 @@ public class ResultPrinter {
         }
     }
 
-    private static CompatibilityData convertData(List<DependencyResolveResult> results) {
-        final CompatibilityData result = new CompatibilityData();
-        results.forEach(result::load);
-        return result;
+    private static CompatibilityData convertData(SourceDependencies availableDependencies, List<DependencyResolveResult> results) {
+        final Metrics.Phase phase = Metrics.start("report aggregation");
+        try {
+            final CompatibilityData result = new CompatibilityData(availableDependencies);
+            results.forEach(result::load);
+            return result;
+        } finally {
+            phase.end();
+        }
     }
 
     private static String createAnchor(String target, String source, ArtifactVersion version) {
@@ -118,105 +195,263 @@ public class ResultPrinter {
     }
 
     public void print(File file, SourceDependencies availableDependencies, List<DependencyResolveResult> results) {
+        final CompatibilityData data = convertData(availableDependencies, results);
+        final Metrics.Phase phase = Metrics.start("report render");
         try (OutputStream os = new FileOutputStream(file);
-                Writer w = new OutputStreamWriter(os, Charsets.UTF_8)) {
+                Writer w = new BufferedWriter(new OutputStreamWriter(os, Charsets.UTF_8))) {
 
             w.write(document().render());
-            final ContainerTag contents = html().with(
-                    head().with(
-                            meta().attr("charset", "UTF-8"),
-                            title("Dependencies"),
-                            style().attr("type", "text/css").with(unsafeHtml(STYLE))
-                            ),
-                    body().with(
-                            createEntries(availableDependencies, results)
-                            )
-                    );
-            w.write(contents.render());
+
+            // tags are rendered and written piece by piece, output is same as for single tree
+            final ContainerTag html = html();
+            w.write(html.renderOpenTag());
+            w.write(head().with(
+                    meta().attr("charset", "UTF-8"),
+                    title("Dependencies"),
+                    style().attr("type", "text/css").with(unsafeHtml(STYLE))
+                    ).render());
+
+            final ContainerTag body = body();
+            w.write(body.renderOpenTag());
+            writeSourceEntries(w, availableDependencies, data);
+            writeMissingDependenciesEntries(w, data);
+            w.write(body.renderCloseTag());
+
+            w.write(html.renderCloseTag());
         } catch (IOException e) {
             throw Throwables.propagate(e);
+        } finally {
+            phase.end();
+        }
+    }
+
+    private static void writeSourceEntries(Writer output, SourceDependencies availableDependencies, CompatibilityData data) throws IOException {
+        final List<File> allTargets = Lists.newArrayList(data.allTargets);
+        allTargets.sort(Comparator.comparing(File::getName));
+        for (String source : availableDependencies.getAllModIds().stream().sorted().collect(Collectors.toList())) {
+            final SourceModCompatibilityTable compatibilityTable = data.get(source);
+            final VersionOrder versions = compatibilityTable.versions;
+
+            output.write(h2(source).render());
+
+            final ContainerTag table = table();
+            output.write(table.renderOpenTag());
+            output.write(thead().with(
+                    tr()
+                            .with(th())
+                            .with(
+                                    Arrays.stream(versions.sortedIndices).mapToObj(v -> th().withText(versions.get(v).toString())).collect(Collectors.toList())
+                            )
+                    ).render());
+
+            final ContainerTag tbody = tbody();
+            output.write(tbody.renderOpenTag());
+            for (File target : allTargets)
+                output.write(createCompatibilityTableRow(source, target, compatibilityTable, anchor -> a().withHref("#" + anchor)).render());
+            output.write(tbody.renderCloseTag());
+
+            output.write(table.renderCloseTag());
         }
     }
 
-    private static List<Tag> createEntries(SourceDependencies availableDependencies, List<DependencyResolveResult> results) {
-        List<Tag> tags = Lists.newArrayList();
-        final CompatibilityData data = convertData(results);
-        createSourceEntries(tags, availableDependencies, data);
-        createMissingDependenciesEntries(tags, data);
-        return tags;
+    private static Tag createCompatibilityTableRow(String source, File target,
+            SourceModCompatibilityTable table, Function<String, ContainerTag> linkFactory) {
+        final ContainerTag rowTag = tr();
+        final String targetName = target.getName();
+        rowTag.with(td(targetName));
+
+        final Map<Integer, MissingTargetDependencies> row = table.missingDependencies.row(target);
+        for (int version : table.versions.sortedIndices) {
+            rowTag.with(row.containsKey(version)
+                    ? td().withClass("r").with(linkFactory.apply(createAnchor(targetName, source, table.versions.get(version))).withText("\u2612"))
+                    : td("\u2611").withClass("g"));
+        }
 
+        return rowTag;
     }
 
-    private static void createSourceEntries(List<Tag> output, SourceDependencies availableDependencies, CompatibilityData data) {
+    private static void writeMissingDependenciesEntries(Writer output, CompatibilityData data) throws IOException {
+        for (Map.Entry<String, SourceModCompatibilityTable> sourceEntry : new TreeMap<>(data.modCompatibilityTable).entrySet()) {
+            final String source = sourceEntry.getKey();
+            final SourceModCompatibilityTable compatibilityTable = sourceEntry.getValue();
+            for (Table.Cell<File, Integer, MissingTargetDependencies> e : compatibilityTable.getSortedCells()) {
+                final String target = e.getRowKey().getName();
+
+                final ArtifactVersion version = compatibilityTable.versions.get(e.getColumnKey());
+
+                final ContainerTag div = div().withClass("missing").withId(createAnchor(target, source, version));
+                output.write(div.renderOpenTag());
+                output.write(h3(target + ":" + source + ":" + version).render());
+
+                for (Map.Entry<String, MissingSourceDependencies> targetEntry : new TreeMap<>(e.getValue().targetClass).entrySet()) {
+                    output.write(h4(targetEntry.getKey()).render());
+                    output.write(pre().withText(formatMissing(targetEntry.getValue())).render());
+                }
+
+                output.write(div.renderCloseTag());
+            }
+        }
+    }
+
+    private static String formatMissing(MissingSourceDependencies missingSourceElements) {
+        final List<String> missing = Lists.newArrayList();
+
+        missing.addAll(missingSourceElements.missingClasses);
+        missingSourceElements.missingElements.entries().forEach(el -> missing.add(el.getKey() + " " + el.getValue()));
+
+        missing.sort(Comparator.naturalOrder());
+        return Joiner.on('\n').join(missing);
+    }
+
+    public void printSplit(File dir, SourceDependencies availableDependencies, List<DependencyResolveResult> results, int parallelism) {
+        dir.mkdirs();
+        final CompatibilityData data = convertData(availableDependencies, results);
+
+        final Metrics.Phase phase = Metrics.start("report render");
+        try {
+            writeSplit(dir, availableDependencies, data, parallelism);
+        } finally {
+            phase.end();
+        }
+    }
+
+    private static void writeSplit(File dir, SourceDependencies availableDependencies, CompatibilityData data, int parallelism) {
         final List<File> allTargets = Lists.newArrayList(data.allTargets);
         allTargets.sort(Comparator.comparing(File::getName));
-        availableDependencies.getAllModIds().stream().sorted().forEach(source -> {
+
+        final List<String> allSources = availableDependencies.getAllModIds().stream().sorted().collect(Collectors.toList());
+
+        final AtomicInteger updatedFiles = new AtomicInteger();
+        final AtomicInteger unchangedFiles = new AtomicInteger();
+        final Consumer<Boolean> counter = updated -> (updated ? updatedFiles : unchangedFiles).incrementAndGet();
+
+        counter.accept(writeIfChanged(new File(dir, "index.html"), createIndexPage(allSources, allTargets)));
+
+        final List<Runnable> jobs = Lists.newArrayList();
+        for (String source : allSources) {
             final SourceModCompatibilityTable compatibilityTable = data.get(source);
+            jobs.add(() -> writeModReport(dir, source, allTargets, compatibilityTable, counter));
+        }
 
-            final List<ArtifactVersion> allVersions = availableDependencies.getMod(source).allVersions().stream().map(DefaultArtifactVersion::new).sorted().collect(Collectors.toList());
-            output.add(h2(source));
-            output.add(table()
-                    .with(
-                            thead().with(
-                                    tr()
-                                            .with(th())
-                                            .with(
-                                                    allVersions.stream().map(v -> th().withText(v.toString())).collect(Collectors.toList())
-                                            )
-                                    )
-                    )
-                    .with(
-                            tbody().with(
-                                    createCompatibilityTableRows(source, allTargets, allVersions, compatibilityTable)
-                                    )
-                    )
-                    );
-        });
-    }
-
-    private static List<Tag> createCompatibilityTableRows(String source, List<File> allTargets, List<ArtifactVersion> allVersions,
-            SourceModCompatibilityTable table) {
-        return allTargets.stream().map(target -> {
-            final ContainerTag rowTag = tr();
-            final String targetName = target.getName();
-            rowTag.with(td(targetName));
-
-            for (ArtifactVersion version : allVersions) {
-                rowTag.with(table.missingDependencies.contains(target, version)
-                        ? td().withClass("r").with(a().withHref("#" + createAnchor(targetName, source, version)).withText("\u2612"))
-                        : td("\u2611").withClass("g"));
-            }
+        ParallelExecutor.runAll("report", parallelism, jobs);
+        deleteRemovedMods(dir, allSources);
+        logger.info("Report written to {}: {} files updated, {} unchanged", dir.getAbsolutePath(), updatedFiles.get(), unchangedFiles.get());
+    }
 
-            return rowTag;
-        }).collect(Collectors.toList());
+    private static String escapeFileName(String name) {
+        return UrlEscapers.urlPathSegmentEscaper().escape(name);
     }
 
-    private static void createMissingDependenciesEntries(List<Tag> output, CompatibilityData data) {
-        data.modCompatibilityTable.forEach((source, compatiblityTable) -> {
-            compatiblityTable.missingDependencies.cellSet().forEach(e -> {
-                final String target = e.getRowKey().getName();
+    private static String renderPage(String title, String style, List<Tag> contents) {
+        final List<Tag> headTags = Lists.newArrayList(meta().attr("charset", "UTF-8"), title(title));
+        if (style != null)
+            headTags.add(style().attr("type", "text/css").with(unsafeHtml(style)));
 
-                final ArtifactVersion version = e.getColumnKey();
+        return document().render() + html().with(head().with(headTags), body().with(contents)).render();
+    }
 
-                final List<Tag> tags = Lists.newArrayList();
-                {
-                    tags.add(h3(target + ":" + source + ":" + version));
+    private static String createIndexPage(List<String> allSources, List<File> allTargets) {
+        final List<Tag> contents = Lists.newArrayList();
+        contents.add(h2("Source mods"));
+        contents.add(ul().with(allSources.stream().map(source -> li().with(a().withHref(escapeFileName(source) + ".html").withText(source))).collect(Collectors.toList())));
+        contents.add(h2("Targets"));
+        contents.add(ul().with(allTargets.stream().map(target -> li(target.getName())).collect(Collectors.toList())));
+        return renderPage("Dependencies", null, contents);
+    }
 
-                    e.getValue().targetClass.forEach((targetCls, missingSourceElements) -> {
-                        tags.add(h4(targetCls));
-                        final List<String> missing = Lists.newArrayList();
+    private static void writeModReport(File dir, String source, List<File> allTargets, SourceModCompatibilityTable compatibilityTable, Consumer<Boolean> counter) {
+        final VersionOrder versions = compatibilityTable.versions;
+        final String detailsDir = escapeFileName(source);
+
+        final List<Tag> contents = Lists.newArrayList();
+        contents.add(a().withHref("index.html").withText("Index"));
+        contents.add(h2(source));
+        contents.add(table()
+                .with(thead().with(tr()
+                        .with(th())
+                        .with(Arrays.stream(versions.sortedIndices).mapToObj(v -> th().withText(versions.get(v).toString())).collect(Collectors.toList()))))
+                .with(tbody().with(allTargets.stream()
+                        .map(target -> createCompatibilityTableRow(source, target, compatibilityTable,
+                                anchor -> a().withHref(detailsDir + "/" + escapeFileName(anchor) + ".html").withTarget("details")))
+                        .collect(Collectors.toList()))));
+        contents.add(iframe().withName("details"));
+
+        counter.accept(writeIfChanged(new File(dir, source + ".html"), renderPage(source, SPLIT_STYLE, contents)));
+
+        final File modDir = new File(dir, source);
+        modDir.mkdirs();
+
+        final Set<String> currentFiles = Sets.newHashSet();
+        for (Table.Cell<File, Integer, MissingTargetDependencies> e : compatibilityTable.getSortedCells()) {
+            final String target = e.getRowKey().getName();
+            final ArtifactVersion version = versions.get(e.getColumnKey());
+
+            final List<Tag> details = Lists.newArrayList();
+            details.add(h3(target + ":" + source + ":" + version));
+
+            final Map<String, MissingSourceDependencies> targetClasses = new TreeMap<>(e.getValue().targetClass);
+            targetClasses.forEach((targetCls, missingSourceElements) -> {
+                details.add(h4(targetCls));
+                details.add(pre().withText(formatMissing(missingSourceElements)));
+            });
 
-                        missing.addAll(missingSourceElements.missingClasses);
-                        missingSourceElements.missingElements.entries().forEach(el -> missing.add(el.getKey() + " " + el.getValue()));
+            final String fileName = createAnchor(target, source, version) + ".html";
+            currentFiles.add(fileName);
+            counter.accept(writeIfChanged(new File(modDir, fileName), renderPage(target + ":" + source + ":" + version, null, details)));
+        }
 
-                        missing.sort(Comparator.naturalOrder());
-                        tags.add(pre().withText(Joiner.on('\n').join(missing)));
-                    });
+        for (File f : modDir.listFiles((d, name) -> name.endsWith(".html") && !currentFiles.contains(name)))
+            deleteStaleFile(f);
+    }
+
+    private static void deleteStaleFile(File f) {
+        if (!f.delete())
+            logger.warn("Failed to delete stale report file {}", f.getAbsolutePath());
+    }
+
+    // pages and detail directories of source mods that were in previous report, but are no longer present
+    // only files written by this class are removed, so anything else kept next to report is left alone
+    private static void deleteRemovedMods(File dir, List<String> allSources) {
+        final File modListFile = new File(dir, MOD_LIST_FILE);
+        try {
+            if (modListFile.isFile()) {
+                final Set<String> removedMods = Sets.newHashSet(Files.readLines(modListFile, Charsets.UTF_8));
+                removedMods.removeAll(allSources);
+                removedMods.remove("");
+                for (String source : removedMods) {
+                    final File page = new File(dir, source + ".html");
+                    if (page.isFile())
+                        deleteStaleFile(page);
+
+                    final File modDir = new File(dir, source);
+                    if (modDir.isDirectory()) {
+                        final String anchorPart = "__" + source + "__";
+                        for (File detail : modDir.listFiles((d, name) -> name.contains(anchorPart) && name.endsWith(".html")))
+                            deleteStaleFile(detail);
+
+                        if (modDir.list().length == 0)
+                            deleteStaleFile(modDir);
+                    }
                 }
+            }
+        } catch (IOException e) {
+            throw Throwables.propagate(e);
+        }
 
-                output.add(div().withClass("missing").withId(createAnchor(target, source, version)).with(tags));
-            });
-        });
+        writeIfChanged(modListFile, Joiner.on('\n').join(allSources));
+    }
+
+    private static boolean writeIfChanged(File file, String contents) {
+        final byte[] bytes = contents.getBytes(Charsets.UTF_8);
+        try {
+            if (file.isFile() && file.length() == bytes.length && Arrays.equals(Files.toByteArray(file), bytes))
+                return false;
+
+            Files.write(bytes, file);
+            return true;
+        } catch (IOException e) {
+            throw Throwables.propagate(e);
+        }
     }
 
 }
@@ -2,6 +2,8 @@ package openmods.depcheck;
 
 import openmods.depcheck.ModInfo.ModRegistrationContext;
 import openmods.depcheck.utils.ElementType;
+import openmods.depcheck.utils.SymbolTable;
+import openmods.depcheck.utils.TypedElement;
 
 import org.objectweb.asm.*;
 
@@ -12,6 +14,12 @@ public class SourceClassBytecodeVisitor extends ClassVisitor {
 
     private String className;
 
+    private String superClassName;
+
+    private ImmutableSet<String> interfaceNames;
+
+    private final ImmutableSet.Builder<TypedElement> elements = ImmutableSet.builder();
+
     public SourceClassBytecodeVisitor(ModRegistrationContext context) {
         super(Opcodes.ASM5);
         this.context = context;
@@ -19,27 +27,34 @@ public class SourceClassBytecodeVisitor extends ClassVisitor {
 
     @Override
     public void visit(int version, int access, String name, String signature, String superName, String[] interfaces) {
-        final String dotName = name.replace('/', '.');
-        final String dotSuperName = superName.replace('/', '.');
+        final String dotName = SymbolTable.toJavaName(name);
+        final String dotSuperName = SymbolTable.toJavaName(superName);
 
         ImmutableSet.Builder<String> dotInterfaces = ImmutableSet.builder();
         for (String intf : interfaces)
-            dotInterfaces.add(intf.replace('/', '.'));
+            dotInterfaces.add(SymbolTable.toJavaName(intf));
 
-        context.registerClass(dotName, dotSuperName, dotInterfaces.build());
         className = dotName;
+        superClassName = dotSuperName;
+        interfaceNames = dotInterfaces.build();
     }
 
     @Override
     public FieldVisitor visitField(int access, String name, String desc, String signature, Object value) {
-        context.registerElement(className, ElementType.FIELD, name, desc);
+        elements.add(TypedElement.of(ElementType.FIELD, name, desc));
         return null;
     }
 
     @Override
     public MethodVisitor visitMethod(int access, String name, String desc, String signature, String[] exceptions) {
-        context.registerElement(className, ElementType.METHOD, name, desc);
+        elements.add(TypedElement.of(ElementType.METHOD, name, desc));
         return null;
     }
 
+    @Override
+    public void visitEnd() {
+        // class is registered only when complete, so identical signatures can be shared between versions
+        context.registerClass(className, superClassName, interfaceNames, elements.build());
+    }
+
 }
@@ -1,28 +1,73 @@
 package openmods.depcheck;
 
 import java.io.Serializable;
+import java.util.Collection;
 import java.util.Map;
 import java.util.Optional;
 import java.util.Set;
+import java.util.concurrent.atomic.LongAdder;
+
+import openmods.depcheck.utils.Metrics;
+import openmods.depcheck.utils.PrefixIndex;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
 
 import com.google.common.collect.Maps;
 
 public class SourceDependencies implements Serializable {
     private static final long serialVersionUID = -8421936165213857432L;
 
-    private final Map<String, ModInfo> mods = Maps.newHashMap();
+    private static final Logger logger = LoggerFactory.getLogger(SourceDependencies.class);
+
+    private static final LongAdder identifyModCalls = Metrics.counter("identifyMod");
+
+    private final Map<String, ModInfo> mods = Maps.newConcurrentMap();
+
+    private transient volatile PrefixIndex<ModInfo> packageIndex;
 
     public ModInfo addMod(String pkgPrefix, String modId) {
-        ModInfo result = mods.get(modId);
-        if (result == null || !result.pkgPrefix.equals(pkgPrefix)) {
-            result = new ModInfo(pkgPrefix, modId);
-            mods.put(modId, result);
+        final ModInfo result = mods.compute(modId, (k, current) -> (current == null || !current.pkgPrefix.equals(pkgPrefix))
+                ? new ModInfo(pkgPrefix, modId)
+                : current);
+        packageIndex = null;
+        return result;
+    }
+
+    public void putMod(ModInfo mod) {
+        mods.put(mod.modId, mod);
+        packageIndex = null;
+    }
+
+    public void removeMod(String modId) {
+        mods.remove(modId);
+        packageIndex = null;
+    }
+
+    private PrefixIndex<ModInfo> createPackageIndex() {
+        final PrefixIndex<ModInfo> result = new PrefixIndex<>();
+        mods.values().stream()
+                .sorted((a, b) -> a.modId.compareTo(b.modId))
+                .forEach(mod -> {
+                    if (!result.put(mod.pkgPrefix, mod))
+                        logger.warn("Mod {} has same package prefix '{}' as other mod, ignoring", mod.modId, mod.pkgPrefix);
+                });
+        return result;
+    }
+
+    private PrefixIndex<ModInfo> getPackageIndex() {
+        PrefixIndex<ModInfo> result = packageIndex;
+        if (result == null) {
+            result = createPackageIndex();
+            packageIndex = result;
         }
         return result;
     }
 
+    // longest matching prefix wins, so nested packages can belong to different mods
     public Optional<ModInfo> identifyMod(String pkg) {
-        return mods.values().stream().filter(m -> m.matchPackage(pkg)).findAny();
+        identifyModCalls.increment();
+        return Optional.ofNullable(getPackageIndex().findLongestPrefix(pkg));
     }
 
     public ModInfo getMod(String modId) {
@@ -33,6 +78,10 @@ public class SourceDependencies implements Serializable {
         return mods.keySet();
     }
 
+    public Collection<ModInfo> getAllMods() {
+        return mods.values();
+    }
+
     public boolean isUpdated() {
         return mods.values().stream().anyMatch(ModInfo::isUpdated);
     }
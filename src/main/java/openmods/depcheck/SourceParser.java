@@ -1,27 +1,36 @@
 package openmods.depcheck;
 
 import java.io.*;
-import java.util.Enumeration;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.Arrays;
 import java.util.List;
+import java.util.Map;
 import java.util.Optional;
+import java.util.Set;
 import java.util.regex.Matcher;
 import java.util.regex.Pattern;
-import java.util.zip.ZipEntry;
-import java.util.zip.ZipFile;
 
 import openmods.depcheck.ModInfo.ModRegistrationContext;
+import openmods.depcheck.utils.MappedJarFile;
+import openmods.depcheck.utils.Metrics;
+import openmods.depcheck.utils.ParallelExecutor;
 
 import org.objectweb.asm.ClassReader;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 import com.google.common.base.Preconditions;
+import com.google.common.collect.Lists;
+import com.google.common.collect.Maps;
+import com.google.common.collect.Sets;
+import com.google.common.hash.HashCode;
+import com.google.common.hash.Hashing;
 import com.google.gson.Gson;
 import com.google.gson.GsonBuilder;
 import com.google.gson.annotations.SerializedName;
 
 import de.ruedigermoeller.serialization.FSTObjectInput;
-import de.ruedigermoeller.serialization.FSTObjectOutput;
 
 public class SourceParser {
 
@@ -29,6 +38,14 @@ public class SourceParser {
 
     private static final Gson GSON = new GsonBuilder().create();
 
+    private static final String CACHE_DIR = "cache";
+
+    private static final String INDEX_EXTENSION = ".idx";
+
+    private static final String LEGACY_EXTENSION = ".ser";
+
+    private static final String MANIFEST_FILE = "manifest.json";
+
     public static class VersionPattern {
         public String pattern;
 
@@ -61,63 +78,258 @@ public class SourceParser {
 
     }
 
+    private static class JarScanJob implements Runnable {
+        public final ModInfo mod;
+        public final String version;
+        public final ModRegistrationContext modVersion;
+        public final File jarFile;
+
+        public JarScanJob(ModInfo mod, String version, ModRegistrationContext modVersion, File jarFile) {
+            this.mod = mod;
+            this.version = version;
+            this.modVersion = modVersion;
+            this.jarFile = jarFile;
+        }
+
+        @Override
+        public void run() {
+            try {
+                final JarFingerprint fingerprint = JarFingerprint.create(jarFile);
+                scanJarContents(mod, modVersion, jarFile);
+                mod.updateVersionSource(version, fingerprint);
+            } catch (IOException e) {
+                throw new RuntimeException(String.format("Failed to process jar file %s", jarFile.getAbsolutePath()), e);
+            }
+        }
+    }
+
     private final File topDir;
 
+    private final int parallelism;
+
     public SourceParser(File topDir) {
+        this(topDir, 1);
+    }
+
+    public SourceParser(File topDir, int parallelism) {
+        Preconditions.checkArgument(parallelism > 0, "Invalid parallelism: %s", parallelism);
         this.topDir = topDir;
+        this.parallelism = parallelism;
     }
 
-    private static SourceDependencies getOrCreateSourceDependencies(File cache) {
-        if (cache.isFile()) {
-            logger.info("Loading source cache from " + cache.getAbsolutePath());
-            try {
-                try (FileInputStream input = new FileInputStream(cache);
-                        FSTObjectInput os = new FSTObjectInput(input)) {
-                    return (SourceDependencies)os.readObject();
+    public File getCacheDir() {
+        return new File(topDir, CACHE_DIR);
+    }
+
+    private static ModInfo loadLegacySegment(File segment) throws Exception {
+        try (FileInputStream input = new FileInputStream(segment);
+                FSTObjectInput os = new FSTObjectInput(input)) {
+            return (ModInfo)os.readObject();
+        }
+    }
+
+    // manifest entries with up-to-date segments are loaded without touching segment contents
+    private static void loadManifest(File cacheDir, SourceDependencies result, Set<String> loadedSegments) {
+        final File manifestFile = new File(cacheDir, MANIFEST_FILE);
+        if (!manifestFile.isFile())
+            return;
+
+        final CacheManifest manifest;
+        try {
+            manifest = CacheManifest.read(manifestFile);
+        } catch (Throwable t) {
+            logger.error("Failed to load source cache manifest from " + manifestFile.getAbsolutePath(), t);
+            return;
+        }
+
+        for (CacheManifest.ModEntry entry : manifest.mods) {
+            final File segment = new File(cacheDir, entry.segment);
+            if (entry.isSegmentValid(segment)) {
+                result.putMod(ModInfo.fromManifest(entry, segment));
+                loadedSegments.add(entry.mod);
+            } else {
+                logger.warn("Source cache segment {} does not match manifest", segment.getAbsolutePath());
+            }
+        }
+    }
+
+    private static SourceDependencies loadCache(File cacheDir) {
+        final SourceDependencies result = new SourceDependencies();
+        if (cacheDir.isDirectory()) {
+            logger.info("Loading source cache from " + cacheDir.getAbsolutePath());
+            final Set<String> loadedSegments = Sets.newHashSet();
+            loadManifest(cacheDir, result, loadedSegments);
+
+            for (File segment : cacheDir.listFiles((f, name) -> name.endsWith(INDEX_EXTENSION))) {
+                final String modId = segment.getName().substring(0, segment.getName().length() - INDEX_EXTENSION.length());
+                if (loadedSegments.contains(modId))
+                    continue;
+
+                try {
+                    result.putMod(ModInfo.fromIndex(ModIndex.open(segment)));
+                    loadedSegments.add(modId);
+                } catch (Throwable t) {
+                    logger.error("Failed to load source cache segment from " + segment.getAbsolutePath(), t);
+                }
+            }
+
+            // FST segments are used only when there is no index file, next store will convert them
+            for (File segment : cacheDir.listFiles((f, name) -> name.endsWith(LEGACY_EXTENSION))) {
+                if (loadedSegments.contains(segment.getName().substring(0, segment.getName().length() - LEGACY_EXTENSION.length())))
+                    continue;
+
+                try {
+                    final ModInfo mod = loadLegacySegment(segment);
+                    mod.markLegacy();
+                    result.putMod(mod);
+                } catch (Throwable t) {
+                    logger.error("Failed to load legacy source cache segment from " + segment.getAbsolutePath(), t);
                 }
-            } catch (Throwable t) {
-                logger.error("Failed to load source cache from " + cache.getAbsolutePath(), t);
             }
         }
 
-        return new SourceDependencies();
+        return result;
     }
 
-    private static void storeCache(File cache, SourceDependencies deps) {
-        if (deps.isUpdated()) {
-            try {
-                try (FileOutputStream output = new FileOutputStream(cache);
-                        FSTObjectOutput os = new FSTObjectOutput(output)) {
-                    os.writeObject(deps);
+    private static void deleteSegment(File segment) {
+        if (segment.exists() && !segment.delete())
+            logger.warn("Failed to delete source cache segment {}", segment.getAbsolutePath());
+    }
+
+    private static CacheManifest.ModEntry createManifestEntry(ModInfo mod, File segment) {
+        final CacheManifest.ModEntry result = new CacheManifest.ModEntry();
+        result.mod = mod.modId;
+        result.pkgPrefix = mod.pkgPrefix;
+        result.segment = segment.getName();
+        result.segmentSize = segment.length();
+        result.segmentLastModified = segment.lastModified();
+
+        for (int i = 0; i < mod.versionCount(); i++) {
+            final String version = mod.getVersion(i);
+            final CacheManifest.VersionEntry versionEntry = new CacheManifest.VersionEntry();
+            versionEntry.version = version;
+            final JarFingerprint source = mod.getVersionSource(version);
+            if (source != null) {
+                versionEntry.file = source.fileName;
+                versionEntry.size = source.size;
+                versionEntry.lastModified = source.lastModified;
+                versionEntry.hash = source.hash;
+            }
+            result.versions.add(versionEntry);
+        }
+
+        return result;
+    }
+
+    private static void storeManifest(File cacheDir, SourceDependencies deps) {
+        final CacheManifest manifest = new CacheManifest();
+        deps.getAllMods().stream()
+                .filter(mod -> !mod.isUpdated())
+                .sorted((a, b) -> a.modId.compareTo(b.modId))
+                .forEach(mod -> manifest.mods.add(createManifestEntry(mod, new File(cacheDir, mod.modId + INDEX_EXTENSION))));
+
+        final File manifestFile = new File(cacheDir, MANIFEST_FILE);
+        final File tmpManifestFile = new File(cacheDir, MANIFEST_FILE + ".tmp");
+        try {
+            cacheDir.mkdirs();
+            manifest.write(tmpManifestFile);
+            Files.move(tmpManifestFile.toPath(), manifestFile.toPath(), StandardCopyOption.REPLACE_EXISTING);
+        } catch (Throwable t) {
+            logger.error("Failed to store source cache manifest to " + manifestFile.getAbsolutePath(), t);
+        }
+    }
+
+    private static void storeCache(File cacheDir, SourceDependencies deps, Set<String> removedMods) {
+        final boolean isChanged = !removedMods.isEmpty() || deps.isUpdated() || !new File(cacheDir, MANIFEST_FILE).isFile();
+
+        for (String modId : removedMods) {
+            deleteSegment(new File(cacheDir, modId + INDEX_EXTENSION));
+            deleteSegment(new File(cacheDir, modId + LEGACY_EXTENSION));
+        }
+
+        for (ModInfo mod : deps.getAllMods()) {
+            if (mod.isUpdated()) {
+                final File segment = new File(cacheDir, mod.modId + INDEX_EXTENSION);
+                final File tmpSegment = new File(cacheDir, mod.modId + INDEX_EXTENSION + ".tmp");
+                try {
+                    cacheDir.mkdirs();
+                    try (OutputStream output = new FileOutputStream(tmpSegment)) {
+                        ModIndex.write(mod, output);
+                    }
+                    // mod with changed version sources only still reads from old segment, new one has the same class data
+                    mod.releaseIndex(segment);
+                    Files.move(tmpSegment.toPath(), segment.toPath(), StandardCopyOption.REPLACE_EXISTING);
+                    deleteSegment(new File(cacheDir, mod.modId + LEGACY_EXTENSION));
+                    mod.markStored();
+                } catch (Throwable t) {
+                    logger.error("Failed to store source cache segment to " + segment.getAbsolutePath(), t);
                 }
-            } catch (Throwable t) {
-                logger.error("Failed to store source cache to " + cache.getAbsolutePath(), t);
             }
         }
+
+        // mods that failed to store are left out of manifest
+        if (isChanged)
+            storeManifest(cacheDir, deps);
     }
 
     public SourceDependencies collectAvailableDependencies() {
+        final SourceDependencies result;
+        final Metrics.Phase phase = Metrics.start("cache load");
+        try {
+            result = loadCache(getCacheDir());
+        } finally {
+            phase.end();
+        }
+        updateAvailableDependencies(result);
+        return result;
+    }
+
+    /**
+     * Rescans mods directory into already loaded dependencies and stores changes in cache.
+     * @return ids of mods that were added, removed or changed
+     */
+    public Set<String> updateAvailableDependencies(SourceDependencies result) {
         final File modsDir = new File(topDir, "mods");
         Preconditions.checkState(modsDir.isDirectory(), "%s is not directory", modsDir.getAbsolutePath());
 
-        final File cache = new File(topDir, "cache.ser");
+        final File cacheDir = getCacheDir();
 
-        final SourceDependencies result = getOrCreateSourceDependencies(cache);
+        final Set<String> removedMods = Sets.newHashSet(result.getAllModIds());
 
+        final List<JarScanJob> jobs = Lists.newArrayList();
         for (File f : modsDir.listFiles()) {
             if (f.isDirectory())
                 try {
-                    scanModDir(result, f);
+                    final ModInfo mod = scanModDir(result, f, jobs);
+                    removedMods.remove(mod.modId);
                 } catch (IOException e) {
                     throw new RuntimeException(String.format("Failed to process directory %s", f.getAbsolutePath()), e);
                 }
         }
 
-        storeCache(cache, result);
-        return result;
+        for (String modId : removedMods) {
+            logger.info("Mod {} no longer present, removing from cache", modId);
+            result.getMod(modId).releaseIndex(null);
+            result.removeMod(modId);
+        }
+
+        ParallelExecutor.runAll("source-scan", parallelism, jobs);
+
+        final Set<String> changedMods = Sets.newHashSet(removedMods);
+        for (ModInfo mod : result.getAllMods())
+            if (mod.isUpdated())
+                changedMods.add(mod.modId);
+
+        final Metrics.Phase phase = Metrics.start("cache store");
+        try {
+            storeCache(cacheDir, result, removedMods);
+        } finally {
+            phase.end();
+        }
+        return changedMods;
     }
 
-    private static void scanModDir(SourceDependencies result, File modDir) throws IOException {
+    private static ModInfo scanModDir(SourceDependencies result, File modDir, List<JarScanJob> jobs) throws IOException {
         logger.info("Scanning source mod directory {}", modDir.getAbsolutePath());
         final File metaFile = new File(modDir, "meta.json");
         try (InputStream input = new FileInputStream(metaFile);
@@ -125,14 +337,38 @@ public class SourceParser {
             final ModInfoMeta meta = GSON.fromJson(reader, ModInfoMeta.class);
             final ModInfo mod = result.addMod(meta.pkgPrefix, meta.mod);
 
-            for (File f : modDir.listFiles((f, name) -> new File(f, name).isFile() && name.endsWith(".jar")))
-                scanJarFile(meta, mod, f);
+            final Map<String, File> versionFiles = Maps.newLinkedHashMap();
+            for (File f : modDir.listFiles((f, name) -> new File(f, name).isFile() && name.endsWith(".jar"))) {
+                final String version = matchVersion(meta, f);
+                final File prevFile = versionFiles.putIfAbsent(version, f);
+                if (prevFile != null)
+                    logger.warn("Version {} of mod {} found in both {} and {}, ignoring latter", version, mod.modId, prevFile, f);
+            }
 
+            final Set<String> removedVersions = Sets.newHashSet(Sets.difference(mod.allVersions(), versionFiles.keySet()));
+            for (String version : removedVersions)
+                logger.info("Version {} of mod {} no longer present, removing from cache", version, mod.modId);
+
+            final Map<String, File> scannedVersions = Maps.newLinkedHashMap();
+            for (Map.Entry<String, File> e : versionFiles.entrySet()) {
+                final String version = e.getKey();
+                final File jarFile = e.getValue();
+                if (needsScan(mod, version, jarFile)) {
+                    scannedVersions.put(version, jarFile);
+                    if (mod.hasVersion(version))
+                        removedVersions.add(version);
+                }
+            }
+
+            // removal changes version indices, so it must happen before new versions are registered
+            mod.removeVersions(removedVersions);
+
+            scannedVersions.forEach((version, jarFile) -> jobs.add(new JarScanJob(mod, version, mod.registerVersion(version), jarFile)));
+            return mod;
         }
     }
 
-    private static void scanJarFile(ModInfoMeta meta, ModInfo mod, File jarFile) throws IOException {
-        logger.info("Scanning source mod jar file {}", jarFile.getAbsolutePath());
+    private static String matchVersion(ModInfoMeta meta, File jarFile) {
         final String jarFileName = jarFile.getName();
         final Optional<String> maybeVersion = meta.patterns.stream()
                 .map(pattern -> pattern.getVersion(jarFileName))
@@ -140,38 +376,72 @@ public class SourceParser {
                 .map(Optional::get)
                 .findFirst();
 
-        final String version = maybeVersion.orElseThrow(() -> new IllegalStateException("File " + jarFile.getAbsolutePath() + " can't be matched"));
+        return maybeVersion.orElseThrow(() -> new IllegalStateException("File " + jarFile.getAbsolutePath() + " can't be matched"));
+    }
+
+    private static boolean needsScan(ModInfo mod, String version, File jarFile) throws IOException {
+        if (!mod.hasVersion(version))
+            return true;
 
-        if (mod.hasVersion(version)) {
+        final JarFingerprint cached = mod.getVersionSource(version);
+        if (cached == null) {
+            logger.info("Version {} found in cache, but without source information", version);
+            return true;
+        }
+
+        if (cached.hasSameAttributes(jarFile)) {
             logger.info("Version {} already found in cache", version);
-        } else {
-            final ModRegistrationContext modVersion = mod.registerVersion(version);
-
-            try (ZipFile zipFile = new ZipFile(jarFile)) {
-                final Enumeration<? extends ZipEntry> e = zipFile.entries();
-                while (e.hasMoreElements()) {
-                    final ZipEntry entry = e.nextElement();
-                    if (entry.isDirectory())
-                        continue;
-
-                    final String name = entry.getName();
-                    if (name.endsWith(".class") && mod.matchPackage(name.replace('/', '.'))) {
-                        logger.trace("Scanning class file {}", name);
-                        try (InputStream zipFileStream = zipFile.getInputStream(entry)) {
-                            scanClassFile(modVersion, zipFileStream);
-                        }
-                    }
-                }
-            }
+            return false;
+        }
 
-            if (modVersion.isEmpty())
-                logger.warn("No matching packages found in {}", jarFile);
+        final JarFingerprint current = JarFingerprint.create(jarFile);
+        if (cached.hasSameContents(current)) {
+            logger.info("Version {} already found in cache, updating file attributes", version);
+            mod.updateVersionSource(version, current);
+            return false;
         }
 
+        logger.info("Version {} changed (was {}, now {}), rescanning", version, cached, current);
+        return true;
+    }
+
+    private static void scanJarContents(ModInfo mod, ModRegistrationContext modVersion, File jarFile) throws IOException {
+        logger.info("Scanning source mod jar file {}", jarFile.getAbsolutePath());
+        final Metrics.Phase phase = Metrics.start("source scan", mod.modId + "/" + jarFile.getName());
+        try (MappedJarFile jar = new MappedJarFile(jarFile)) {
+            scanArchive(mod, modVersion, jar, Sets.newHashSet());
+        } finally {
+            phase.end();
+        }
+
+        if (modVersion.isEmpty())
+            logger.warn("No matching packages found in {}", jarFile);
+    }
+
+    private static void scanArchive(ModInfo mod, ModRegistrationContext modVersion, MappedJarFile jar, Set<HashCode> visitedNestedJars) throws IOException {
+        for (MappedJarFile.Entry entry : jar.getEntries()) {
+            if (entry.isDirectory())
+                continue;
+
+            final String name = entry.name;
+            if (name.endsWith(".class") && mod.matchPackage(name.replace('/', '.'))) {
+                logger.trace("Scanning class file {}", name);
+                scanClassFile(modVersion, jar.read(entry), entry.size);
+            } else if (name.endsWith(".jar")) {
+                // nested jars are scanned in memory, same jar embedded more than once is scanned only first time
+                final byte[] data = Arrays.copyOf(jar.read(entry), entry.size);
+                if (visitedNestedJars.add(Hashing.sha1().hashBytes(data))) {
+                    final String nestedName = jar.getName() + "!/" + name;
+                    logger.debug("Scanning nested jar {}", nestedName);
+                    scanArchive(mod, modVersion, new MappedJarFile(nestedName, data), visitedNestedJars);
+                }
+            }
+        }
     }
 
-    private static void scanClassFile(ModRegistrationContext mod, InputStream is) throws IOException {
-        final ClassReader reader = new ClassReader(is);
+    private static void scanClassFile(ModRegistrationContext mod, byte[] data, int length) {
+        Metrics.recordClass(length);
+        final ClassReader reader = new ClassReader(data, 0, length);
 
         final SourceClassBytecodeVisitor cv = new SourceClassBytecodeVisitor(mod);
         reader.accept(cv, ClassReader.SKIP_DEBUG | ClassReader.SKIP_FRAMES);
@@ -1,12 +1,14 @@
 package openmods.depcheck;
 
-import java.util.function.Consumer;
-
 import openmods.depcheck.TargetParser.TargetClassVisitor;
 import openmods.depcheck.utils.ElementType;
+import openmods.depcheck.utils.SymbolTable;
 
 import org.objectweb.asm.*;
 
+/**
+ * Reusable visitor, single instance may scan many classes (one at time) - see {@link #scan(ClassReader, TargetClassVisitor)}.
+ */
 public class TargetClassBytecodeVisitor extends ClassVisitor {
 
     private class MethodDependencyVisitor extends MethodVisitor {
@@ -17,79 +19,88 @@ public class TargetClassBytecodeVisitor extends ClassVisitor {
 
         @Override
         public void visitLdcInsn(Object cst) {
-            if (cst instanceof Type)
-                visitType((Type)cst);
+            if (cst instanceof Type) {
+                final Type type = (Type)cst;
+                if (type.getSort() == Type.OBJECT)
+                    visitor.visitRequiredClass(SymbolTable.toJavaName(type.getInternalName()));
+                else
+                    visitDescriptor(visitor, type.getDescriptor());
+            }
         }
 
         @Override
         public void visitTypeInsn(int opcode, String type) {
-            String clsName = type.replace('/', '.');
-            visitor.visitRequiredClass(clsName);
+            visitClassConstant(visitor, type);
         }
 
         @Override
         public void visitMultiANewArrayInsn(String desc, int dims) {
-            visitType(Type.getType(desc));
+            visitDescriptor(visitor, desc);
         }
 
         @Override
         public void visitFieldInsn(int opcode, String owner, String name, String desc) {
-            visitor.visitRequiredElement(internalToJava(owner), ElementType.FIELD, name, desc);
+            visitor.visitRequiredElement(SymbolTable.toJavaName(owner), ElementType.FIELD, name, desc);
         }
 
         @Override
         public void visitMethodInsn(int opcode, String owner, String name, String desc, boolean itf) {
-            visitor.visitRequiredElement(internalToJava(owner), ElementType.METHOD, name, desc);
+            visitor.visitRequiredElement(SymbolTable.toJavaName(owner), ElementType.METHOD, name, desc);
         }
 
     }
 
-    private final TargetClassVisitor visitor;
+    private final MethodDependencyVisitor methodVisitor = new MethodDependencyVisitor();
+
+    private TargetClassVisitor visitor;
 
-    public TargetClassBytecodeVisitor(TargetClassVisitor visitor) {
+    public TargetClassBytecodeVisitor() {
         super(Opcodes.ASM5);
-        this.visitor = visitor;
     }
 
-    private static String internalToJava(String cls) {
-        return cls.replace('/', '.');
+    public void scan(ClassReader reader, TargetClassVisitor visitor) {
+        this.visitor = visitor;
+        try {
+            reader.accept(this, ClassReader.SKIP_DEBUG | ClassReader.SKIP_FRAMES);
+        } finally {
+            this.visitor = null;
+        }
     }
 
-    private static void extractReferenceType(Type type, Consumer<String> typeConsumer) {
-        if (type.getSort() == Type.OBJECT) {
-            typeConsumer.accept(type.getClassName());
-        } else if (type.getSort() == Type.ARRAY)
-            extractReferenceType(type.getElementType(), typeConsumer);
-        else if (type.getSort() == Type.METHOD) {
-            extractReferenceType(type.getReturnType(), typeConsumer);
-
-            for (Type argType : type.getArgumentTypes())
-                extractReferenceType(argType, typeConsumer);
-        }
+    static void visitDescriptor(TargetClassVisitor visitor, String desc) {
+        for (String cls : SymbolTable.getReferencedClasses(desc))
+            visitor.visitRequiredClass(cls);
     }
 
-    private void visitType(Type type) {
-        extractReferenceType(type, visitor::visitRequiredClass);
+    /**
+     * Handles CONSTANT_Class values, which are either internal class names or array descriptors.
+     */
+    static void visitClassConstant(TargetClassVisitor visitor, String internalName) {
+        if (internalName.startsWith("["))
+            visitDescriptor(visitor, internalName);
+        else
+            visitor.visitRequiredClass(SymbolTable.toJavaName(internalName));
     }
 
     @Override
     public void visit(int version, int access, String name, String signature, String superName, String[] interfaces) {
         for (String intf : interfaces)
-            visitor.visitRequiredClass(internalToJava(intf));
+            visitor.visitRequiredClass(SymbolTable.toJavaName(intf));
 
-        visitor.visitRequiredClass(internalToJava(superName));
+        if (superName != null)
+            visitor.visitRequiredClass(SymbolTable.toJavaName(superName));
     }
 
     @Override
     public FieldVisitor visitField(int access, String name, String desc, String signature, Object value) {
-        visitType(Type.getType(desc));
+        visitDescriptor(visitor, desc);
         return null;
     }
 
     @Override
     public MethodVisitor visitMethod(int access, String name, String desc, String signature, String[] exceptions) {
-        visitType(Type.getMethodType(desc));
-        return new MethodDependencyVisitor();
+        visitDescriptor(visitor, desc);
+        return methodVisitor;
     }
 
 }
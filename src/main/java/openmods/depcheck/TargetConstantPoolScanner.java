@@ -0,0 +1,180 @@
+package openmods.depcheck;
+
+import java.util.BitSet;
+
+import openmods.depcheck.TargetParser.TargetClassVisitor;
+import openmods.depcheck.utils.ClassFile;
+import openmods.depcheck.utils.ElementType;
+import openmods.depcheck.utils.SymbolTable;
+
+/**
+ * Extracts target class references from constant pool, without decoding bytecode with ASM.
+ * Instructions are only walked to find out which constant pool entries are used by them, so reported references match {@link TargetClassBytecodeVisitor}.
+ */
+public class TargetConstantPoolScanner {
+
+    private static final int LDC = 0x12;
+    private static final int LDC_W = 0x13;
+    private static final int TABLESWITCH = 0xaa;
+    private static final int LOOKUPSWITCH = 0xab;
+    private static final int GETSTATIC = 0xb2;
+    private static final int PUTFIELD = 0xb5;
+    private static final int INVOKEVIRTUAL = 0xb6;
+    private static final int INVOKEINTERFACE = 0xb9;
+    private static final int NEW = 0xbb;
+    private static final int ANEWARRAY = 0xbd;
+    private static final int CHECKCAST = 0xc0;
+    private static final int INSTANCEOF = 0xc1;
+    private static final int WIDE = 0xc4;
+    private static final int MULTIANEWARRAY = 0xc5;
+    private static final int IINC = 0x84;
+
+    // instruction lengths (including opcode), 0 for variable length or invalid
+    private static final int[] INSTRUCTION_LENGTH = new int[256];
+
+    static {
+        setLength(1, 0x00, 0x0f);
+        setLength(2, 0x10, 0x10);
+        setLength(3, 0x11, 0x11);
+        setLength(2, 0x12, 0x12);
+        setLength(3, 0x13, 0x14);
+        setLength(2, 0x15, 0x19);
+        setLength(1, 0x1a, 0x35);
+        setLength(2, 0x36, 0x3a);
+        setLength(1, 0x3b, 0x83);
+        setLength(3, 0x84, 0x84);
+        setLength(1, 0x85, 0x98);
+        setLength(3, 0x99, 0xa8);
+        setLength(2, 0xa9, 0xa9);
+        setLength(1, 0xac, 0xb1);
+        setLength(3, 0xb2, 0xb8);
+        setLength(5, 0xb9, 0xba);
+        setLength(3, 0xbb, 0xbb);
+        setLength(2, 0xbc, 0xbc);
+        setLength(3, 0xbd, 0xbd);
+        setLength(1, 0xbe, 0xbf);
+        setLength(3, 0xc0, 0xc1);
+        setLength(1, 0xc2, 0xc3);
+        setLength(4, 0xc5, 0xc5);
+        setLength(3, 0xc6, 0xc7);
+        setLength(5, 0xc8, 0xc9);
+    }
+
+    private static void setLength(int length, int from, int to) {
+        for (int i = from; i <= to; i++)
+            INSTRUCTION_LENGTH[i] = length;
+    }
+
+    private final ClassFile cls;
+
+    private final byte[] data;
+
+    // constant pool entries used as operand of type instructions (new, checkcast, etc.)
+    private final BitSet typeInsnEntries = new BitSet();
+
+    // constant pool entries loaded by ldc or used as multianewarray type
+    private final BitSet typeConstantEntries = new BitSet();
+
+    private final BitSet refEntries = new BitSet();
+
+    private TargetConstantPoolScanner(ClassFile cls) {
+        this.cls = cls;
+        this.data = cls.getData();
+    }
+
+    public static void scan(ClassFile cls, TargetClassVisitor visitor) {
+        new TargetConstantPoolScanner(cls).accept(visitor);
+    }
+
+    private static String internalToJava(String cls) {
+        return SymbolTable.toJavaName(cls);
+    }
+
+    private void markOperands(int codeOffset, int codeLength) {
+        final int end = codeOffset + codeLength;
+        int pos = codeOffset;
+        while (pos < end) {
+            final int opcode = data[pos] & 0xFF;
+            switch (opcode) {
+                case LDC:
+                    typeConstantEntries.set(data[pos + 1] & 0xFF);
+                    break;
+                case LDC_W:
+                    typeConstantEntries.set(cls.readShort(pos + 1));
+                    break;
+                case NEW:
+                case ANEWARRAY:
+                case CHECKCAST:
+                case INSTANCEOF:
+                    typeInsnEntries.set(cls.readShort(pos + 1));
+                    break;
+                case MULTIANEWARRAY:
+                    typeConstantEntries.set(cls.readShort(pos + 1));
+                    break;
+                default:
+                    if (opcode >= GETSTATIC && opcode <= INVOKEINTERFACE)
+                        refEntries.set(cls.readShort(pos + 1));
+            }
+
+            switch (opcode) {
+                case TABLESWITCH: {
+                    final int base = align(codeOffset, pos + 1);
+                    final int low = cls.readInt(base + 4);
+                    final int high = cls.readInt(base + 8);
+                    pos = base + 12 + 4 * (high - low + 1);
+                    break;
+                }
+                case LOOKUPSWITCH: {
+                    final int base = align(codeOffset, pos + 1);
+                    final int pairs = cls.readInt(base + 4);
+                    pos = base + 8 + 8 * pairs;
+                    break;
+                }
+                case WIDE:
+                    pos += (data[pos + 1] & 0xFF) == IINC ? 6 : 4;
+                    break;
+                default: {
+                    final int length = INSTRUCTION_LENGTH[opcode];
+                    if (length == 0)
+                        throw new IllegalArgumentException("Invalid opcode " + opcode + " at " + (pos - codeOffset));
+                    pos += length;
+                }
+            }
+        }
+    }
+
+    private static int align(int codeOffset, int pos) {
+        return pos + ((4 - (pos - codeOffset) % 4) % 4);
+    }
+
+    public void accept(TargetClassVisitor visitor) {
+        for (String intf : cls.getInterfaces())
+            visitor.visitRequiredClass(internalToJava(intf));
+
+        final String superClass = cls.getSuperClass();
+        if (superClass != null)
+            visitor.visitRequiredClass(internalToJava(superClass));
+
+        cls.visitMembers((type, name, desc) -> TargetClassBytecodeVisitor.visitDescriptor(visitor, desc));
+
+        cls.visitMethodCode(this::markOperands);
+
+        for (int i = typeInsnEntries.nextSetBit(0); i >= 0; i = typeInsnEntries.nextSetBit(i + 1))
+            TargetClassBytecodeVisitor.visitClassConstant(visitor, cls.getClassName(i));
+
+        for (int i = typeConstantEntries.nextSetBit(0); i >= 0; i = typeConstantEntries.nextSetBit(i + 1)) {
+            final int tag = cls.getTag(i);
+            if (tag == ClassFile.CONSTANT_CLASS)
+                TargetClassBytecodeVisitor.visitClassConstant(visitor, cls.getClassName(i));
+            else if (tag == ClassFile.CONSTANT_METHOD_TYPE)
+                TargetClassBytecodeVisitor.visitDescriptor(visitor, cls.getUtf8(cls.getFirstOperand(i)));
+        }
+
+        for (int i = refEntries.nextSetBit(0); i >= 0; i = refEntries.nextSetBit(i + 1)) {
+            final ElementType type = cls.getTag(i) == ClassFile.CONSTANT_FIELDREF ? ElementType.FIELD : ElementType.METHOD;
+            final String owner = internalToJava(cls.getClassName(cls.getFirstOperand(i)));
+            final int nameAndType = cls.getSecondOperand(i);
+            visitor.visitRequiredElement(owner, type, cls.getUtf8(cls.getFirstOperand(nameAndType)), cls.getUtf8(cls.getSecondOperand(nameAndType)));
+        }
+    }
+}
@@ -1,17 +1,42 @@
 package openmods.depcheck;
 
 import java.io.*;
-import java.util.Enumeration;
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
 import java.util.Optional;
-import java.util.zip.ZipEntry;
-import java.util.zip.ZipFile;
+import java.util.Set;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.zip.ZipException;
 
+import openmods.depcheck.utils.ClassFile;
 import openmods.depcheck.utils.ElementType;
+import openmods.depcheck.utils.MappedJarFile;
+import openmods.depcheck.utils.Metrics;
+import openmods.depcheck.utils.PackagePrefilter;
+import openmods.depcheck.utils.ParallelExecutor;
+import openmods.depcheck.utils.TypedElement;
 
 import org.objectweb.asm.ClassReader;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+import com.google.common.base.Preconditions;
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+import com.google.common.collect.LinkedHashMultimap;
+import com.google.common.collect.Lists;
+import com.google.common.collect.Maps;
+import com.google.common.collect.SetMultimap;
+import com.google.common.collect.Sets;
+import com.google.common.hash.HashCode;
+import com.google.common.hash.Hashing;
+import com.google.common.util.concurrent.UncheckedExecutionException;
+
 public class TargetParser {
 
     private static final String REFLECTION_LOG_PREFIX = "###";
@@ -33,23 +58,212 @@ public class TargetParser {
         public TargetModContentsVisitor visitFile(File file);
     }
 
+    public enum ExtractionMode {
+        // full bytecode decoding with ASM
+        ASM,
+        // constant pool scan, see TargetConstantPoolScanner
+        CONSTANT_POOL,
+        // runs both and reports differences, ASM results are used
+        VERIFY;
+    }
+
+    private static class RecordingClassVisitor implements TargetClassVisitor {
+        private final Set<String> entries = Sets.newHashSet();
+
+        @Override
+        public void visitRequiredClass(String cls) {
+            entries.add(cls);
+        }
+
+        @Override
+        public void visitRequiredElement(String cls, ElementType type, String name, String desc) {
+            entries.add(cls + " " + type + " " + name + " " + desc);
+        }
+    }
+
+    private static class RecordedClass implements TargetClassVisitor {
+        private final Set<String> requiredClasses = Sets.newLinkedHashSet();
+
+        private final SetMultimap<String, TypedElement> requiredElements = LinkedHashMultimap.create();
+
+        @Override
+        public void visitRequiredClass(String cls) {
+            requiredClasses.add(cls);
+        }
+
+        @Override
+        public void visitRequiredElement(String cls, ElementType type, String name, String desc) {
+            requiredElements.put(cls, TypedElement.of(type, name, desc));
+        }
+
+        public void replay(TargetClassVisitor visitor) {
+            for (String cls : requiredClasses)
+                visitor.visitRequiredClass(cls);
+
+            for (Map.Entry<String, TypedElement> e : requiredElements.entries()) {
+                final TypedElement element = e.getValue();
+                visitor.visitRequiredElement(e.getKey(), element.type, element.name, element.desc);
+            }
+        }
+    }
+
+    private static class RecordedArchive implements TargetModContentsVisitor {
+        private final Map<String, RecordedClass> classes = Maps.newLinkedHashMap();
+
+        @Override
+        public TargetClassVisitor visitClass(String cls) {
+            return classes.computeIfAbsent(cls, k -> new RecordedClass());
+        }
+
+        @Override
+        public Optional<TargetClassVisitor> visitClassIfExists(String cls) {
+            return Optional.ofNullable(classes.get(cls));
+        }
+
+        public void replay(TargetModContentsVisitor visitor) {
+            for (Map.Entry<String, RecordedClass> e : classes.entrySet())
+                e.getValue().replay(visitor.visitClass(e.getKey()));
+        }
+    }
+
     private final File targetsDir;
 
+    private final int parallelism;
+
+    private final ExtractionMode extractionMode;
+
+    // null if all classes should be scanned
+    private final PackagePrefilter prefilter;
+
+    private final AtomicInteger mismatchCount = new AtomicInteger();
+
+    private final AtomicInteger classCount = new AtomicInteger();
+
+    private final AtomicInteger skippedClassCount = new AtomicInteger();
+
+    private final AtomicLong analysedAllocatedBytes = new AtomicLong();
+
+    private final AtomicInteger nestedJarCount = new AtomicInteger();
+
+    // sha1 of nested jar contents -> references found in it
+    private final Cache<HashCode, RecordedArchive> nestedJars = CacheBuilder.newBuilder().build();
+
+    private static final ThreadLocal<TargetClassBytecodeVisitor> bytecodeVisitors = ThreadLocal.withInitial(TargetClassBytecodeVisitor::new);
+
+    // null if JVM can't measure per-thread allocations
+    private static final com.sun.management.ThreadMXBean allocationCounter = createAllocationCounter();
+
+    private static com.sun.management.ThreadMXBean createAllocationCounter() {
+        try {
+            final ThreadMXBean bean = ManagementFactory.getThreadMXBean();
+            if (bean instanceof com.sun.management.ThreadMXBean) {
+                final com.sun.management.ThreadMXBean result = (com.sun.management.ThreadMXBean)bean;
+                if (result.isThreadAllocatedMemorySupported() && result.isThreadAllocatedMemoryEnabled())
+                    return result;
+            }
+        } catch (LinkageError e) {
+            // non-HotSpot JVM
+        }
+        return null;
+    }
+
+    private static long getAllocatedBytes() {
+        return allocationCounter != null ? allocationCounter.getThreadAllocatedBytes(Thread.currentThread().getId()) : 0;
+    }
+
     public TargetParser(File topDir) {
+        this(topDir, 1, ExtractionMode.ASM, null);
+    }
+
+    public TargetParser(File topDir, int parallelism, ExtractionMode extractionMode, PackagePrefilter prefilter) {
+        Preconditions.checkArgument(parallelism > 0, "Invalid parallelism: %s", parallelism);
         this.targetsDir = new File(topDir, "targets");
+        this.parallelism = parallelism;
+        this.extractionMode = extractionMode;
+        this.prefilter = prefilter;
+    }
+
+    // number of classes with different ASM and constant pool results, only counted in VERIFY mode
+    int getMismatchCount() {
+        return mismatchCount.get();
+    }
+
+    public static List<File> listTargets(File targetsDir) {
+        return Arrays.asList(targetsDir.listFiles((f, name) -> new File(f, name).isFile() && name.endsWith(".jar")));
+    }
+
+    private static File getDynamicDepsFile(File target) {
+        return new File(target.getParentFile(), target.getName() + ".dynamic");
+    }
+
+    /**
+     * Checks if any class of target may reference one of packages accepted by filter. Targets with dynamic dependencies are always accepted.
+     */
+    public static boolean mayReference(File target, PackagePrefilter filter) throws IOException {
+        if (getDynamicDepsFile(target).isFile())
+            return true;
+
+        try (MappedJarFile jar = new MappedJarFile(target)) {
+            return mayReference(jar, filter);
+        }
+    }
+
+    private static boolean mayReference(MappedJarFile jar, PackagePrefilter filter) throws IOException {
+        for (MappedJarFile.Entry entry : jar.getEntries()) {
+            if (entry.isDirectory())
+                continue;
+
+            if (entry.name.endsWith(".class")) {
+                if (filter.mayReference(new ClassFile(jar.read(entry))))
+                    return true;
+            } else if (entry.name.endsWith(".jar")) {
+                if (mayReference(new MappedJarFile(jar.getName() + "!/" + entry.name, Arrays.copyOf(jar.read(entry), entry.size)), filter))
+                    return true;
+            }
+        }
+
+        return false;
     }
 
     public void accept(TargetModVisitor visitor) {
-        for (File f : targetsDir.listFiles((f, name) -> new File(f, name).isFile() && name.endsWith(".jar"))) {
-            logger.info("Scanning target mod jar file {}", f.getAbsolutePath());
+        accept(visitor, listTargets(targetsDir));
+    }
+
+    public void accept(TargetModVisitor visitor, List<File> targets) {
+        // visitFile is always called on this thread, in listing order, so visitors can keep their results ordered
+        final List<Runnable> jobs = Lists.newArrayList();
+        for (File f : targets) {
             final TargetModContentsVisitor fileVisitor = visitor.visitFile(f);
+            jobs.add(() -> acceptTarget(f, fileVisitor));
+        }
+
+        ParallelExecutor.runAll("target-scan", parallelism, jobs);
+
+        if (prefilter != null)
+            logger.info("Skipped {} of {} target classes with no references to known packages", skippedClassCount.get(), classCount.get());
+
+        final int analysedClasses = classCount.get() - skippedClassCount.get();
+        if (allocationCounter != null && analysedClasses > 0)
+            logger.info("Extraction allocated {} bytes per analysed class ({} classes)", analysedAllocatedBytes.get() / analysedClasses, analysedClasses);
+
+        if (nestedJarCount.get() > 0)
+            logger.info("Analysed {} distinct nested jar(s), {} nested jar entries in total", nestedJars.size(), nestedJarCount.get());
+
+        if (extractionMode == ExtractionMode.VERIFY)
+            logger.info("Extraction verification finished, {} class(es) with mismatched references", mismatchCount.get());
+    }
+
+    private void acceptTarget(File f, TargetModContentsVisitor fileVisitor) {
+        logger.info("Scanning target mod jar file {}", f.getAbsolutePath());
+        final Metrics.Phase phase = Metrics.start("target scan", f.getName());
+        try {
             try {
                 acceptFile(f, fileVisitor);
             } catch (IOException e) {
                 throw new RuntimeException(String.format("Failed to process target file %s", f.getAbsolutePath()), e);
             }
 
-            final File dynamicDeps = new File(f.getParentFile(), f.getName() + ".dynamic");
+            final File dynamicDeps = getDynamicDepsFile(f);
             if (dynamicDeps.isFile()) {
                 try {
                     acceptDynamicDeps(dynamicDeps, fileVisitor);
@@ -57,6 +271,8 @@ public class TargetParser {
                     throw new RuntimeException(String.format("Failed to process dynamic dependencies file %s", dynamicDeps.getAbsolutePath()), e);
                 }
             }
+        } finally {
+            phase.end();
         }
     }
 
@@ -119,31 +335,120 @@ public class TargetParser {
         }
     }
 
-    private static void acceptFile(File jarFile, TargetModContentsVisitor fileVisitor) throws IOException {
-        try (ZipFile zipFile = new ZipFile(jarFile)) {
-            final Enumeration<? extends ZipEntry> e = zipFile.entries();
-            while (e.hasMoreElements()) {
-                final ZipEntry entry = e.nextElement();
-                if (entry.isDirectory())
-                    continue;
+    private void acceptFile(File jarFile, TargetModContentsVisitor fileVisitor) throws IOException {
+        try (MappedJarFile jar = new MappedJarFile(jarFile)) {
+            acceptArchive(jar, fileVisitor);
+        }
+    }
+
+    private void acceptArchive(MappedJarFile jar, TargetModContentsVisitor fileVisitor) throws IOException {
+        for (MappedJarFile.Entry entry : jar.getEntries()) {
+            if (entry.isDirectory())
+                continue;
+
+            if (entry.name.endsWith(".class"))
+                acceptClassFile(entry.name, fileVisitor, jar.read(entry), entry.size);
+            else if (entry.name.endsWith(".jar"))
+                acceptNestedJar(jar.getName() + "!/" + entry.name, Arrays.copyOf(jar.read(entry), entry.size), fileVisitor);
+        }
+    }
+
+    /**
+     * Nested jars are scanned in memory. Results are recorded and shared by all archives with same nested jar, so each distinct jar is analysed once.
+     */
+    private void acceptNestedJar(String name, byte[] data, TargetModContentsVisitor fileVisitor) {
+        nestedJarCount.incrementAndGet();
+        final HashCode hash = Hashing.sha1().hashBytes(data);
+        final RecordedArchive archive;
+        try {
+            archive = nestedJars.get(hash, () -> {
+                logger.info("Scanning nested jar {}", name);
+                final RecordedArchive result = new RecordedArchive();
+                acceptArchive(new MappedJarFile(name, data), result);
+                return result;
+            });
+        } catch (ExecutionException | UncheckedExecutionException e) {
+            logger.warn(String.format("Failed to process nested jar %s", name), e.getCause());
+            return;
+        }
+
+        archive.replay(fileVisitor);
+    }
+
+    /**
+     * Scans jar loaded into memory (i.e. uploaded, not stored in targets dir). Dynamic dependencies are not supported.
+     * @throws ZipException when data is not valid jar (checked before visitor is called) or has corrupted entries
+     */
+    public void acceptJar(String jarName, byte[] data, TargetModVisitor visitor) throws IOException {
+        try (MappedJarFile jar = new MappedJarFile(jarName, data)) {
+            final TargetModContentsVisitor fileVisitor = visitor.visitFile(new File(jarName));
+            // name comes from client and metrics are never reset in server mode, so per-item stats would grow without bound
+            final Metrics.Phase phase = Metrics.start("target scan");
+            try {
+                acceptArchive(jar, fileVisitor);
+            } finally {
+                phase.end();
+            }
+        }
+    }
 
-                final String name = entry.getName();
-                if (name.endsWith(".class")) {
-                    logger.trace("Scanning class file {}", name);
-                    final String clsName = name.replace('/', '.').substring(0, name.length() - ".class".length());
-                    final TargetClassVisitor classVisitor = fileVisitor.visitClass(clsName);
-                    try (InputStream zipFileStream = zipFile.getInputStream(entry)) {
-                        scanClassFile(classVisitor, zipFileStream);
-                    }
-                }
+    private void acceptClassFile(String name, TargetModContentsVisitor fileVisitor, byte[] data, int length) {
+        logger.trace("Scanning class file {}", name);
+        Metrics.recordClass(length);
+        final String clsName = name.replace('/', '.').substring(0, name.length() - ".class".length());
+        final TargetClassVisitor classVisitor = fileVisitor.visitClass(clsName);
+        scanClassFile(clsName, classVisitor, data, length);
+    }
+
+    /**
+     * Class data occupies <code>[0, length)</code> range of array, which may be reused after this call.
+     */
+    private void scanClassFile(String clsName, TargetClassVisitor classVisitor, byte[] data, int length) {
+        classCount.incrementAndGet();
+
+        ClassFile cls = null;
+        if (prefilter != null) {
+            cls = new ClassFile(data);
+            if (!prefilter.mayReference(cls)) {
+                logger.trace("Skipping class {}, no known packages referenced", clsName);
+                skippedClassCount.incrementAndGet();
+                return;
             }
         }
+
+        final long allocatedBefore = getAllocatedBytes();
+        switch (extractionMode) {
+            case ASM:
+                scanClassBytecode(classVisitor, data, length);
+                break;
+            case CONSTANT_POOL:
+                TargetConstantPoolScanner.scan(cls != null ? cls : new ClassFile(data), classVisitor);
+                break;
+            case VERIFY:
+                verifyClassFile(clsName, classVisitor, data, length);
+                break;
+        }
+        analysedAllocatedBytes.addAndGet(getAllocatedBytes() - allocatedBefore);
+    }
+
+    private static void scanClassBytecode(TargetClassVisitor classVisitor, byte[] data, int length) {
+        bytecodeVisitors.get().scan(new ClassReader(data, 0, length), classVisitor);
     }
 
-    private static void scanClassFile(TargetClassVisitor classVisitor, InputStream is) throws IOException {
-        final ClassReader reader = new ClassReader(is);
+    private void verifyClassFile(String clsName, TargetClassVisitor classVisitor, byte[] data, int length) {
+        final RecordingClassVisitor expected = new RecordingClassVisitor();
+        scanClassBytecode(expected, data, length);
+
+        final RecordingClassVisitor actual = new RecordingClassVisitor();
+        TargetConstantPoolScanner.scan(new ClassFile(data), actual);
+
+        if (!expected.entries.equals(actual.entries)) {
+            mismatchCount.incrementAndGet();
+            logger.warn("Constant pool extraction mismatch in class {}: missing {}, extra {}", clsName,
+                    Sets.difference(expected.entries, actual.entries),
+                    Sets.difference(actual.entries, expected.entries));
+        }
 
-        final TargetClassBytecodeVisitor cv = new TargetClassBytecodeVisitor(classVisitor);
-        reader.accept(cv, ClassReader.SKIP_DEBUG | ClassReader.SKIP_FRAMES);
+        scanClassBytecode(classVisitor, data, length);
     }
 }
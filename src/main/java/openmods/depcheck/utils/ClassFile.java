@@ -0,0 +1,245 @@
+package openmods.depcheck.utils;
+
+import com.google.common.base.Preconditions;
+
+/**
+ * Minimal class file parser, reads constant pool and class header without decoding any code.
+ * Works for any class file version, since layout of parsed parts did not change.
+ */
+public class ClassFile {
+
+    public interface MemberVisitor {
+        public void visitMember(ElementType type, String name, String desc);
+    }
+
+    public interface CodeVisitor {
+        public void visitCode(int codeOffset, int codeLength);
+    }
+
+    public static final int CONSTANT_UTF8 = 1;
+    public static final int CONSTANT_INTEGER = 3;
+    public static final int CONSTANT_FLOAT = 4;
+    public static final int CONSTANT_LONG = 5;
+    public static final int CONSTANT_DOUBLE = 6;
+    public static final int CONSTANT_CLASS = 7;
+    public static final int CONSTANT_STRING = 8;
+    public static final int CONSTANT_FIELDREF = 9;
+    public static final int CONSTANT_METHODREF = 10;
+    public static final int CONSTANT_INTERFACE_METHODREF = 11;
+    public static final int CONSTANT_NAME_AND_TYPE = 12;
+    public static final int CONSTANT_METHOD_HANDLE = 15;
+    public static final int CONSTANT_METHOD_TYPE = 16;
+    public static final int CONSTANT_DYNAMIC = 17;
+    public static final int CONSTANT_INVOKE_DYNAMIC = 18;
+    public static final int CONSTANT_MODULE = 19;
+    public static final int CONSTANT_PACKAGE = 20;
+
+    private final byte[] data;
+
+    // offset of tag of each entry, 0 for unusable slots (index 0 and second half of long/double)
+    private final int[] offsets;
+
+    private final String[] strings;
+
+    private final int headerOffset;
+
+    public ClassFile(byte[] data) {
+        this.data = data;
+        Preconditions.checkArgument(data.length >= 10 && readInt(0) == 0xCAFEBABE, "Not a class file");
+
+        final int count = readShort(8);
+        this.offsets = new int[count];
+        this.strings = new String[count];
+
+        int offset = 10;
+        for (int i = 1; i < count; i++) {
+            offsets[i] = offset;
+            final int tag = data[offset] & 0xFF;
+            switch (tag) {
+                case CONSTANT_UTF8:
+                    offset += 3 + readShort(offset + 1);
+                    break;
+                case CONSTANT_CLASS:
+                case CONSTANT_STRING:
+                case CONSTANT_METHOD_TYPE:
+                case CONSTANT_MODULE:
+                case CONSTANT_PACKAGE:
+                    offset += 3;
+                    break;
+                case CONSTANT_METHOD_HANDLE:
+                    offset += 4;
+                    break;
+                case CONSTANT_INTEGER:
+                case CONSTANT_FLOAT:
+                case CONSTANT_FIELDREF:
+                case CONSTANT_METHODREF:
+                case CONSTANT_INTERFACE_METHODREF:
+                case CONSTANT_NAME_AND_TYPE:
+                case CONSTANT_DYNAMIC:
+                case CONSTANT_INVOKE_DYNAMIC:
+                    offset += 5;
+                    break;
+                case CONSTANT_LONG:
+                case CONSTANT_DOUBLE:
+                    offset += 9;
+                    i++;
+                    break;
+                default:
+                    throw new IllegalArgumentException("Unknown constant pool tag " + tag + " at " + offset);
+            }
+        }
+
+        this.headerOffset = offset;
+    }
+
+    public int readShort(int offset) {
+        return ((data[offset] & 0xFF) << 8) | (data[offset + 1] & 0xFF);
+    }
+
+    public int readInt(int offset) {
+        return ((data[offset] & 0xFF) << 24) | ((data[offset + 1] & 0xFF) << 16) | ((data[offset + 2] & 0xFF) << 8) | (data[offset + 3] & 0xFF);
+    }
+
+    public int getConstantCount() {
+        return offsets.length;
+    }
+
+    public int getTag(int index) {
+        final int offset = offsets[index];
+        return offset != 0 ? data[offset] & 0xFF : 0;
+    }
+
+    // first and second u2 operand of entry (i.e. class index, name and type index)
+    public int getFirstOperand(int index) {
+        return readShort(offsets[index] + 1);
+    }
+
+    public int getSecondOperand(int index) {
+        return readShort(offsets[index] + 3);
+    }
+
+    public String getUtf8(int index) {
+        String result = strings[index];
+        if (result == null) {
+            result = decodeUtf8(offsets[index]);
+            strings[index] = result;
+        }
+        return result;
+    }
+
+    // raw bytes of UTF8 entry: returns offset of first byte, length is available from getUtf8Length
+    public int getUtf8Offset(int index) {
+        return offsets[index] + 3;
+    }
+
+    public int getUtf8Length(int index) {
+        return readShort(offsets[index] + 1);
+    }
+
+    public byte[] getData() {
+        return data;
+    }
+
+    private String decodeUtf8(int offset) {
+        final int length = readShort(offset + 1);
+        final char[] chars = new char[length];
+        int pos = offset + 3;
+        final int end = pos + length;
+        int count = 0;
+        while (pos < end) {
+            final int c = data[pos++] & 0xFF;
+            if (c < 0x80) {
+                chars[count++] = (char)c;
+            } else if ((c & 0xE0) == 0xC0) {
+                chars[count++] = (char)(((c & 0x1F) << 6) | (data[pos++] & 0x3F));
+            } else {
+                chars[count++] = (char)(((c & 0x0F) << 12) | ((data[pos++] & 0x3F) << 6) | (data[pos++] & 0x3F));
+            }
+        }
+        return new String(chars, 0, count);
+    }
+
+    // internal name of CONSTANT_Class entry
+    public String getClassName(int classIndex) {
+        return getUtf8(getFirstOperand(classIndex));
+    }
+
+    public int getAccess() {
+        return readShort(headerOffset);
+    }
+
+    public String getThisClass() {
+        return getClassName(readShort(headerOffset + 2));
+    }
+
+    public String getSuperClass() {
+        final int index = readShort(headerOffset + 4);
+        return index != 0 ? getClassName(index) : null;
+    }
+
+    public String[] getInterfaces() {
+        final int count = readShort(headerOffset + 6);
+        final String[] result = new String[count];
+        for (int i = 0; i < count; i++)
+            result[i] = getClassName(readShort(headerOffset + 8 + 2 * i));
+        return result;
+    }
+
+    private int skipAttributes(int offset) {
+        final int count = readShort(offset);
+        offset += 2;
+        for (int i = 0; i < count; i++)
+            offset += 6 + readInt(offset + 2);
+        return offset;
+    }
+
+    private int visitMembers(int offset, ElementType type, MemberVisitor visitor) {
+        final int count = readShort(offset);
+        offset += 2;
+        for (int i = 0; i < count; i++) {
+            visitor.visitMember(type, getUtf8(readShort(offset + 2)), getUtf8(readShort(offset + 4)));
+            offset = skipAttributes(offset + 6);
+        }
+        return offset;
+    }
+
+    private int skipMembers(int offset) {
+        final int count = readShort(offset);
+        offset += 2;
+        for (int i = 0; i < count; i++)
+            offset = skipAttributes(offset + 6);
+        return offset;
+    }
+
+    private int getFieldsOffset() {
+        return headerOffset + 8 + 2 * readShort(headerOffset + 6);
+    }
+
+    public void visitMembers(MemberVisitor visitor) {
+        final int methodsOffset = visitMembers(getFieldsOffset(), ElementType.FIELD, visitor);
+        visitMembers(methodsOffset, ElementType.METHOD, visitor);
+    }
+
+    private static boolean isCodeAttribute(byte[] data, int offset, int length) {
+        return length == 4 && data[offset] == 'C' && data[offset + 1] == 'o' && data[offset + 2] == 'd' && data[offset + 3] == 'e';
+    }
+
+    // calls visitor with bytecode range of every method that has Code attribute
+    public void visitMethodCode(CodeVisitor visitor) {
+        final int methodsOffset = skipMembers(getFieldsOffset());
+
+        final int methodCount = readShort(methodsOffset);
+        int offset = methodsOffset + 2;
+        for (int i = 0; i < methodCount; i++) {
+            final int attributeCount = readShort(offset + 6);
+            offset += 8;
+            for (int j = 0; j < attributeCount; j++) {
+                final int nameIndex = readShort(offset);
+                final int length = readInt(offset + 2);
+                if (isCodeAttribute(data, getUtf8Offset(nameIndex), getUtf8Length(nameIndex)))
+                    visitor.visitCode(offset + 14, readInt(offset + 10));
+                offset += 6 + length;
+            }
+        }
+    }
+}
@@ -0,0 +1,281 @@
+package openmods.depcheck.utils;
+
+import java.io.*;
+import java.net.URI;
+import java.net.URL;
+import java.net.URLClassLoader;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.*;
+import java.util.*;
+import java.util.stream.Stream;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipFile;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.google.common.base.Strings;
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.ImmutableMap;
+import com.google.common.collect.ImmutableSet;
+import com.google.common.collect.Maps;
+import com.google.common.collect.Queues;
+import com.google.common.hash.Hashing;
+import com.google.common.io.ByteStreams;
+
+/**
+ * Member index of JDK classes, built from class files of selected JDK (rt.jar or jrt image) and stored in {@code jdk} subdirectory of source cache.
+ * Only classes from {@code java.} packages (and their supertypes) are kept.
+ */
+public class JdkClassIndex {
+
+    private static final Logger logger = LoggerFactory.getLogger(JdkClassIndex.class);
+
+    private static final int MAGIC = 0x44434A4B;
+
+    private static final int FORMAT_VERSION = 1;
+
+    private static final String INDEX_DIR = "jdk";
+
+    private static final String INDEX_EXTENSION = ".idx";
+
+    public static class JdkClass {
+        public final String superClass;
+
+        public final List<String> interfaces;
+
+        private final Set<TypedElement> members;
+
+        public JdkClass(String superClass, List<String> interfaces, Set<TypedElement> members) {
+            this.superClass = superClass;
+            this.interfaces = interfaces;
+            this.members = members;
+        }
+
+        public void addMembers(ImmutableSet.Builder<TypedElement> output) {
+            output.addAll(members);
+        }
+    }
+
+    private final String source;
+
+    private final Map<String, JdkClass> classes;
+
+    private JdkClassIndex(String source, Map<String, JdkClass> classes) {
+        this.source = source;
+        this.classes = classes;
+    }
+
+    public String getSource() {
+        return source;
+    }
+
+    public int size() {
+        return classes.size();
+    }
+
+    public JdkClass getClass(String clsName) {
+        return classes.get(clsName);
+    }
+
+    private static File findClassSource(File jdkHome) {
+        for (String candidate : new String[] { "lib/rt.jar", "jre/lib/rt.jar", "lib/modules" }) {
+            final File f = new File(jdkHome, candidate);
+            if (f.isFile())
+                return f;
+        }
+
+        return null;
+    }
+
+    public static Optional<JdkClassIndex> loadOrCreate(File jdkHome, File cacheDir) {
+        final File source = findClassSource(jdkHome);
+        if (source == null) {
+            logger.warn("No class files found in JDK {}", jdkHome.getAbsolutePath());
+            return Optional.empty();
+        }
+
+        final String sourcePath = source.getAbsolutePath();
+        final File indexDir = new File(cacheDir, INDEX_DIR);
+        final String indexName = Hashing.sha1().hashString(sourcePath, StandardCharsets.UTF_8).toString().substring(0, 16) + INDEX_EXTENSION;
+        final File indexFile = new File(indexDir, indexName);
+
+        if (indexFile.isFile()) {
+            try {
+                final JdkClassIndex result = read(indexFile, source);
+                if (result != null) {
+                    logger.info("Loaded JDK index for {} ({} classes)", sourcePath, result.size());
+                    return Optional.of(result);
+                }
+                logger.info("JDK index {} is outdated", indexFile.getAbsolutePath());
+            } catch (Exception e) {
+                logger.warn("Failed to read JDK index {}, rebuilding", indexFile.getAbsolutePath(), e);
+            }
+        }
+
+        final JdkClassIndex result;
+        try {
+            logger.info("Building JDK index from {}", sourcePath);
+            final Map<String, JdkClass> allClasses = source.getName().endsWith(".jar")
+                    ? scanJar(source)
+                    : scanImage(jdkHome);
+            result = new JdkClassIndex(sourcePath, selectJavaClasses(allClasses));
+            logger.info("Built JDK index for {} ({} classes)", sourcePath, result.size());
+        } catch (Exception e) {
+            logger.warn("Failed to build JDK index from {}", sourcePath, e);
+            return Optional.empty();
+        }
+
+        try {
+            indexDir.mkdirs();
+            final File tmpFile = new File(indexDir, indexName + ".tmp");
+            try (DataOutputStream os = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(tmpFile)))) {
+                result.write(os, source);
+            }
+            Files.move(tmpFile.toPath(), indexFile.toPath(), StandardCopyOption.REPLACE_EXISTING);
+        } catch (IOException e) {
+            logger.warn("Failed to store JDK index {}", indexFile.getAbsolutePath(), e);
+        }
+
+        return Optional.of(result);
+    }
+
+    private static String toClassName(String internalName) {
+        return internalName.replace('/', '.');
+    }
+
+    private static void scanClass(byte[] data, Map<String, JdkClass> output) {
+        final ClassFile cls = new ClassFile(data);
+        final String superClass = cls.getSuperClass();
+
+        final ImmutableList.Builder<String> interfaces = ImmutableList.builder();
+        for (String intf : cls.getInterfaces())
+            interfaces.add(toClassName(intf));
+
+        final ImmutableSet.Builder<TypedElement> members = ImmutableSet.builder();
+        cls.visitMembers((type, name, desc) -> members.add(TypedElement.of(type, name, desc)));
+
+        output.put(toClassName(cls.getThisClass()), new JdkClass(superClass != null ? toClassName(superClass) : null, interfaces.build(), members.build()));
+    }
+
+    private static Map<String, JdkClass> scanJar(File jarFile) throws IOException {
+        final Map<String, JdkClass> result = Maps.newHashMap();
+        try (ZipFile zip = new ZipFile(jarFile)) {
+            final Enumeration<? extends ZipEntry> entries = zip.entries();
+            while (entries.hasMoreElements()) {
+                final ZipEntry entry = entries.nextElement();
+                if (entry.getName().endsWith(".class")) {
+                    try (InputStream is = zip.getInputStream(entry)) {
+                        scanClass(ByteStreams.toByteArray(is), result);
+                    }
+                }
+            }
+        }
+        return result;
+    }
+
+    private static Map<String, JdkClass> scanImage(File jdkHome) throws IOException {
+        final Map<String, JdkClass> result = Maps.newHashMap();
+        final Map<String, String> env = ImmutableMap.of("java.home", jdkHome.getAbsolutePath());
+        final URL jrtFs = new File(jdkHome, "lib/jrt-fs.jar").toURI().toURL();
+        try (URLClassLoader loader = new URLClassLoader(new URL[] { jrtFs });
+                FileSystem fs = FileSystems.newFileSystem(URI.create("jrt:/"), env, loader);
+                Stream<Path> paths = Files.walk(fs.getPath("/modules"))) {
+            final Iterator<Path> it = paths.iterator();
+            while (it.hasNext()) {
+                final Path p = it.next();
+                final String name = p.getFileName() != null ? p.getFileName().toString() : "";
+                if (name.endsWith(".class") && !name.equals("module-info.class"))
+                    scanClass(Files.readAllBytes(p), result);
+            }
+        }
+        return result;
+    }
+
+    private static Map<String, JdkClass> selectJavaClasses(Map<String, JdkClass> allClasses) {
+        final Map<String, JdkClass> result = Maps.newHashMap();
+        final Queue<String> queue = Queues.newArrayDeque();
+        for (String clsName : allClasses.keySet())
+            if (clsName.startsWith("java."))
+                queue.add(clsName);
+
+        while (!queue.isEmpty()) {
+            final String clsName = queue.poll();
+            if (result.containsKey(clsName))
+                continue;
+
+            final JdkClass cls = allClasses.get(clsName);
+            if (cls == null)
+                continue;
+
+            result.put(clsName, cls);
+            if (cls.superClass != null)
+                queue.add(cls.superClass);
+            queue.addAll(cls.interfaces);
+        }
+
+        return result;
+    }
+
+    private void write(DataOutputStream os, File sourceFile) throws IOException {
+        os.writeInt(MAGIC);
+        os.writeInt(FORMAT_VERSION);
+        os.writeUTF(source);
+        os.writeLong(sourceFile.length());
+        os.writeLong(sourceFile.lastModified());
+
+        os.writeInt(classes.size());
+        for (Map.Entry<String, JdkClass> e : classes.entrySet()) {
+            final JdkClass cls = e.getValue();
+            os.writeUTF(e.getKey());
+            os.writeUTF(Strings.nullToEmpty(cls.superClass));
+            os.writeShort(cls.interfaces.size());
+            for (String intf : cls.interfaces)
+                os.writeUTF(intf);
+
+            os.writeInt(cls.members.size());
+            for (TypedElement member : cls.members) {
+                os.writeByte(member.type.ordinal());
+                os.writeUTF(member.name);
+                os.writeUTF(member.desc);
+            }
+        }
+    }
+
+    private static JdkClassIndex read(File indexFile, File sourceFile) throws IOException {
+        final ElementType[] types = ElementType.values();
+        try (DataInputStream is = new DataInputStream(new BufferedInputStream(new FileInputStream(indexFile)))) {
+            if (is.readInt() != MAGIC || is.readInt() != FORMAT_VERSION)
+                return null;
+
+            final String source = is.readUTF();
+            if (!source.equals(sourceFile.getAbsolutePath()) ||
+                    is.readLong() != sourceFile.length() ||
+                    is.readLong() != sourceFile.lastModified())
+                return null;
+
+            final int classCount = is.readInt();
+            final Map<String, JdkClass> classes = Maps.newHashMapWithExpectedSize(classCount);
+            for (int i = 0; i < classCount; i++) {
+                final String clsName = is.readUTF();
+                final String superClass = Strings.emptyToNull(is.readUTF());
+
+                final int interfaceCount = is.readUnsignedShort();
+                final ImmutableList.Builder<String> interfaces = ImmutableList.builder();
+                for (int j = 0; j < interfaceCount; j++)
+                    interfaces.add(is.readUTF());
+
+                final int memberCount = is.readInt();
+                final ImmutableSet.Builder<TypedElement> members = ImmutableSet.builder();
+                for (int j = 0; j < memberCount; j++) {
+                    final ElementType type = types[is.readUnsignedByte()];
+                    members.add(TypedElement.of(type, is.readUTF(), is.readUTF()));
+                }
+
+                classes.put(clsName, new JdkClass(superClass, interfaces.build(), members.build()));
+            }
+
+            return new JdkClassIndex(source, classes);
+        }
+    }
+}
@@ -1,18 +1,80 @@
 package openmods.depcheck.utils;
 
+import java.lang.reflect.Field;
+import java.lang.reflect.Method;
 import java.util.Arrays;
 import java.util.Queue;
+import java.util.Set;
+
+import openmods.depcheck.utils.JdkClassIndex.JdkClass;
+
+import org.objectweb.asm.Type;
 
 import com.google.common.base.Throwables;
-import com.google.common.collect.HashBasedTable;
+import com.google.common.cache.CacheBuilder;
+import com.google.common.cache.CacheLoader;
+import com.google.common.cache.LoadingCache;
+import com.google.common.collect.ImmutableSet;
 import com.google.common.collect.Queues;
-import com.google.common.collect.Table;
+import com.google.common.collect.Sets;
 
 public class LibClassChecker {
 
-    private static final Table<String, TypedElement, Boolean> cache = HashBasedTable.create();
+    private static final int CACHE_SIZE = Integer.getInteger("depcheck.libCacheSize", 4096);
+
+    // class name -> all members visible in class, including inherited ones
+    private static final LoadingCache<String, Set<TypedElement>> cache = CacheBuilder.newBuilder()
+            .maximumSize(CACHE_SIZE)
+            .recordStats()
+            .build(new CacheLoader<String, Set<TypedElement>>() {
+                @Override
+                public Set<TypedElement> load(String clsName) throws Exception {
+                    final JdkClassIndex index = jdkIndex;
+                    return index != null
+                            ? collectIndexedMembers(index, clsName)
+                            : collectClassMembers(clsName);
+                }
+            });
+
+    static {
+        Metrics.registerCache("jdk member cache", cache);
+    }
+
+    private static volatile JdkClassIndex jdkIndex;
+
+    public static void setJdkIndex(JdkClassIndex index) {
+        jdkIndex = index;
+        cache.invalidateAll();
+    }
+
+    private static Set<TypedElement> collectIndexedMembers(JdkClassIndex index, String clsName) {
+        final ImmutableSet.Builder<TypedElement> result = ImmutableSet.builder();
+        final Set<String> visited = Sets.newHashSet();
+        final Queue<String> classes = Queues.newArrayDeque();
+        classes.add(clsName);
+
+        while (!classes.isEmpty()) {
+            final String name = classes.poll();
+            if (!visited.add(name))
+                continue;
+
+            final JdkClass cls = index.getClass(name);
+            if (cls == null)
+                continue;
+
+            cls.addMembers(result);
+
+            if (cls.superClass != null)
+                classes.add(cls.superClass);
+
+            classes.addAll(cls.interfaces);
+        }
+        return result.build();
+    }
 
-    private static boolean findElementInClass(String clsName, TypedElement element) {
+    private static Set<TypedElement> collectClassMembers(String clsName) {
+        final ImmutableSet.Builder<TypedElement> result = ImmutableSet.builder();
+        final Set<Class<?>> visited = Sets.newHashSet();
         final Queue<Class<?>> classes = Queues.newArrayDeque();
 
         try {
@@ -23,8 +85,14 @@ public class LibClassChecker {
 
         while (!classes.isEmpty()) {
             final Class<?> cls = classes.poll();
-            if (element.isInClass(cls))
-                return true;
+            if (!visited.add(cls))
+                continue;
+
+            for (Field f : cls.getDeclaredFields())
+                result.add(TypedElement.of(ElementType.FIELD, f.getName(), Type.getDescriptor(f.getType())));
+
+            for (Method m : cls.getDeclaredMethods())
+                result.add(TypedElement.of(ElementType.METHOD, m.getName(), Type.getMethodDescriptor(m)));
 
             {
                 final Class<?> superClass = cls.getSuperclass();
@@ -34,17 +102,11 @@ public class LibClassChecker {
 
             classes.addAll(Arrays.asList(cls.getInterfaces()));
         }
-        return false;
+        return result.build();
     }
 
     public static boolean isElementInClass(String clsName, TypedElement element) {
-        Boolean result = cache.get(clsName, element);
-        if (result != null)
-            return result;
-
-        result = findElementInClass(clsName, element);
-        cache.put(clsName, element, result);
-        return result;
+        return cache.getUnchecked(clsName).contains(element);
     }
 
 }
@@ -0,0 +1,68 @@
+package openmods.depcheck.utils;
+
+import java.lang.reflect.Field;
+import java.lang.reflect.Method;
+import java.nio.ByteBuffer;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Explicit release of memory-mapped buffers. Without it mapping is released only when buffer is collected, and until then mapped file can't be deleted or replaced on Windows.
+ * There is no public API for unmapping, so JDK internals are used: {@code Unsafe.invokeCleaner} on Java 9+, buffer cleaner on Java 8.
+ * If neither is accessible, {@link #unmap(ByteBuffer)} does nothing and mapping is left to GC.
+ */
+public class MappedBuffers {
+
+    private static final Logger logger = LoggerFactory.getLogger(MappedBuffers.class);
+
+    private interface Unmapper {
+        public void unmap(ByteBuffer buffer) throws Exception;
+    }
+
+    private static final Unmapper unmapper = createUnmapper();
+
+    private static Unmapper createUnmapper() {
+        try {
+            try {
+                final Class<?> unsafeClass = Class.forName("sun.misc.Unsafe");
+                final Method invokeCleaner = unsafeClass.getMethod("invokeCleaner", ByteBuffer.class);
+                final Field theUnsafe = unsafeClass.getDeclaredField("theUnsafe");
+                theUnsafe.setAccessible(true);
+                final Object unsafe = theUnsafe.get(null);
+                return buffer -> invokeCleaner.invoke(unsafe, buffer);
+            } catch (NoSuchMethodException e) {
+                // Java 8
+                final Method getCleaner = Class.forName("sun.nio.ch.DirectBuffer").getMethod("cleaner");
+                final Method clean = Class.forName("sun.misc.Cleaner").getMethod("clean");
+                return buffer -> {
+                    final Object cleaner = getCleaner.invoke(buffer);
+                    if (cleaner != null)
+                        clean.invoke(cleaner);
+                };
+            }
+        } catch (Throwable t) {
+            logger.warn("Explicit unmapping is not supported, mapped files will be released by GC", t);
+            return null;
+        }
+    }
+
+    public static boolean isUnmapSupported() {
+        return unmapper != null;
+    }
+
+    /**
+     * Releases mapping of direct buffer. Buffer (and all its views) must not be accessed afterwards - it would crash JVM.
+     * Heap buffers are ignored.
+     */
+    public static void unmap(ByteBuffer buffer) {
+        if (unmapper == null || !buffer.isDirect())
+            return;
+
+        try {
+            unmapper.unmap(buffer);
+        } catch (Exception e) {
+            logger.warn("Failed to unmap buffer, mapping will be released by GC", e);
+        }
+    }
+}
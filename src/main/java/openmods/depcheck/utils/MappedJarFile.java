@@ -0,0 +1,290 @@
+package openmods.depcheck.utils;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.List;
+import java.util.zip.DataFormatException;
+import java.util.zip.Inflater;
+import java.util.zip.ZipException;
+
+import com.google.common.base.Charsets;
+import com.google.common.collect.ImmutableList;
+
+/**
+ * Read-only jar reader working on memory-mapped file (or in-memory archive, for nested jars). Entries are listed from central directory and decompressed directly from mapping into per-thread buffers.
+ * Only features used by jars are supported: stored and deflated entries, no encryption, files smaller than 2 GB.
+ * Mapping is released on {@link #close()} (see {@link MappedBuffers}), when JVM does not allow that, file stays mapped (and can't be replaced on Windows) until reader is collected.
+ */
+public class MappedJarFile implements Closeable {
+
+    private static final int END_HEADER = 0x06054b50;
+    private static final int END_HEADER_SIZE = 22;
+    private static final int ZIP64_END_LOCATOR = 0x07064b50;
+    private static final int ZIP64_END_LOCATOR_SIZE = 20;
+    private static final int ZIP64_END_HEADER = 0x06064b50;
+    private static final int CENTRAL_HEADER = 0x02014b50;
+    private static final int CENTRAL_HEADER_SIZE = 46;
+    private static final int LOCAL_HEADER = 0x04034b50;
+    private static final int LOCAL_HEADER_SIZE = 30;
+
+    private static final int METHOD_STORED = 0;
+    private static final int METHOD_DEFLATED = 8;
+
+    public static class Entry {
+        public final String name;
+
+        public final int method;
+
+        public final int compressedSize;
+
+        public final int size;
+
+        private final int localHeaderOffset;
+
+        private Entry(String name, int method, int compressedSize, int size, int localHeaderOffset) {
+            this.name = name;
+            this.method = method;
+            this.compressedSize = compressedSize;
+            this.size = size;
+            this.localHeaderOffset = localHeaderOffset;
+        }
+
+        public boolean isDirectory() {
+            return name.endsWith("/");
+        }
+
+        @Override
+        public String toString() {
+            return name;
+        }
+    }
+
+    private static class ThreadBuffers {
+        private final Inflater inflater = new Inflater(true);
+
+        private byte[] input = new byte[0];
+
+        private byte[] output = new byte[0];
+
+        private byte[] getInput(int size) {
+            if (input.length < size)
+                input = new byte[Math.max(size, input.length * 2)];
+            return input;
+        }
+
+        private byte[] getOutput(int size) {
+            if (output.length < size)
+                output = new byte[Math.max(size, output.length * 2)];
+            return output;
+        }
+    }
+
+    private static final ThreadLocal<ThreadBuffers> buffers = ThreadLocal.withInitial(ThreadBuffers::new);
+
+    private final String name;
+
+    private final ByteBuffer buffer;
+
+    private final List<Entry> entries;
+
+    private boolean closed;
+
+    public MappedJarFile(File file) throws IOException {
+        this.name = file.getPath();
+        try (RandomAccessFile raf = new RandomAccessFile(file, "r");
+                FileChannel channel = raf.getChannel()) {
+            final long size = channel.size();
+            if (size > Integer.MAX_VALUE)
+                throw new ZipException("File too large to map: " + name);
+
+            // mapping stays valid after channel is closed
+            final MappedByteBuffer mapping = channel.map(FileChannel.MapMode.READ_ONLY, 0, size);
+            this.buffer = mapping.order(ByteOrder.LITTLE_ENDIAN);
+        }
+
+        try {
+            this.entries = readCentralDirectory();
+        } catch (IOException e) {
+            MappedBuffers.unmap(buffer);
+            throw e;
+        }
+    }
+
+    public MappedJarFile(String name, byte[] data) throws IOException {
+        this.name = name;
+        this.buffer = ByteBuffer.wrap(data).order(ByteOrder.LITTLE_ENDIAN);
+        this.entries = readCentralDirectory();
+    }
+
+    public String getName() {
+        return name;
+    }
+
+    public List<Entry> getEntries() {
+        return entries;
+    }
+
+    private int findEndHeader() throws ZipException {
+        // end header is followed by comment (max 65535 bytes)
+        final int minOffset = Math.max(0, buffer.limit() - END_HEADER_SIZE - 0xFFFF);
+        for (int offset = buffer.limit() - END_HEADER_SIZE; offset >= minOffset; offset--)
+            if (buffer.getInt(offset) == END_HEADER)
+                return offset;
+
+        throw new ZipException("End of central directory not found in " + name);
+    }
+
+    private static int checkedInt(long value, String field) throws ZipException {
+        if (value < 0 || value > Integer.MAX_VALUE)
+            throw new ZipException("Unsupported " + field + ": " + value);
+        return (int)value;
+    }
+
+    private List<Entry> readCentralDirectory() throws ZipException {
+        try {
+            return parseCentralDirectory();
+        } catch (IndexOutOfBoundsException | BufferUnderflowException e) {
+            throw new ZipException("Truncated central directory in " + name);
+        }
+    }
+
+    private List<Entry> parseCentralDirectory() throws ZipException {
+        final int endOffset = findEndHeader();
+
+        long entryCount = buffer.getShort(endOffset + 10) & 0xFFFF;
+        long directoryOffset = buffer.getInt(endOffset + 16) & 0xFFFFFFFFL;
+
+        final int locatorOffset = endOffset - ZIP64_END_LOCATOR_SIZE;
+        if (locatorOffset >= 0 && buffer.getInt(locatorOffset) == ZIP64_END_LOCATOR) {
+            final int zip64EndOffset = checkedInt(buffer.getLong(locatorOffset + 8), "zip64 end offset");
+            if (buffer.getInt(zip64EndOffset) != ZIP64_END_HEADER)
+                throw new ZipException("Invalid zip64 end of central directory in " + name);
+            entryCount = buffer.getLong(zip64EndOffset + 32);
+            directoryOffset = buffer.getLong(zip64EndOffset + 48);
+        }
+
+        final int count = checkedInt(entryCount, "entry count");
+        int offset = checkedInt(directoryOffset, "central directory offset");
+
+        final ImmutableList.Builder<Entry> result = ImmutableList.builder();
+        for (int i = 0; i < count; i++) {
+            if (buffer.getInt(offset) != CENTRAL_HEADER)
+                throw new ZipException("Invalid central directory entry " + i + " in " + name);
+
+            final int method = buffer.getShort(offset + 10) & 0xFFFF;
+            final int compressedSize = checkedInt(buffer.getInt(offset + 20) & 0xFFFFFFFFL, "compressed size");
+            final int size = checkedInt(buffer.getInt(offset + 24) & 0xFFFFFFFFL, "size");
+            final int nameLength = buffer.getShort(offset + 28) & 0xFFFF;
+            final int extraLength = buffer.getShort(offset + 30) & 0xFFFF;
+            final int commentLength = buffer.getShort(offset + 32) & 0xFFFF;
+            final int localHeaderOffset = checkedInt(buffer.getInt(offset + 42) & 0xFFFFFFFFL, "local header offset");
+
+            final byte[] nameBytes = new byte[nameLength];
+            readBytes(offset + CENTRAL_HEADER_SIZE, nameBytes, 0, nameLength);
+
+            result.add(new Entry(new String(nameBytes, Charsets.UTF_8), method, compressedSize, size, localHeaderOffset));
+            offset += CENTRAL_HEADER_SIZE + nameLength + extraLength + commentLength;
+        }
+
+        return result.build();
+    }
+
+    private void readBytes(int offset, byte[] target, int targetOffset, int length) {
+        final ByteBuffer view = buffer.duplicate();
+        view.position(offset);
+        view.get(target, targetOffset, length);
+    }
+
+    private int getDataOffset(Entry entry) throws ZipException {
+        final int offset = entry.localHeaderOffset;
+        if (buffer.getInt(offset) != LOCAL_HEADER)
+            throw new ZipException("Invalid local header for entry " + entry + " in " + name);
+
+        // local name and extra lengths may differ from central directory ones
+        final int nameLength = buffer.getShort(offset + 26) & 0xFFFF;
+        final int extraLength = buffer.getShort(offset + 28) & 0xFFFF;
+        return offset + LOCAL_HEADER_SIZE + nameLength + extraLength;
+    }
+
+    /**
+     * Returns buffer with entry contents in range <code>[0, entry.size)</code>.
+     * Buffer is owned by calling thread and is overwritten by next read on the same thread, so it must not be kept.
+     */
+    public byte[] read(Entry entry) throws IOException {
+        // reading unmapped buffer would crash JVM
+        if (closed)
+            throw new IOException("Jar " + name + " is already closed");
+
+        try {
+            return readEntry(entry);
+        } catch (IndexOutOfBoundsException | BufferUnderflowException e) {
+            throw new ZipException("Truncated entry " + entry + " in " + name);
+        }
+    }
+
+    private byte[] readEntry(Entry entry) throws ZipException {
+        final int dataOffset = getDataOffset(entry);
+        // checked before buffers are allocated, so corrupted sizes can't cause huge allocations
+        if ((long)dataOffset + entry.compressedSize > buffer.limit())
+            throw new ZipException("Truncated entry " + entry + " in " + name);
+
+        if (entry.method == METHOD_STORED && entry.size != entry.compressedSize)
+            throw new ZipException("Invalid size of stored entry " + entry + " in " + name);
+
+        final ThreadBuffers threadBuffers = buffers.get();
+        final byte[] output = threadBuffers.getOutput(entry.size);
+
+        switch (entry.method) {
+            case METHOD_STORED:
+                readBytes(dataOffset, output, 0, entry.size);
+                break;
+            case METHOD_DEFLATED:
+                inflate(entry, dataOffset, threadBuffers, output);
+                break;
+            default:
+                throw new ZipException("Unsupported compression method " + entry.method + " for entry " + entry + " in " + name);
+        }
+
+        return output;
+    }
+
+    private void inflate(Entry entry, int dataOffset, ThreadBuffers threadBuffers, byte[] output) throws ZipException {
+        // raw inflater may need one extra dummy byte of input
+        final byte[] input = threadBuffers.getInput(entry.compressedSize + 1);
+        readBytes(dataOffset, input, 0, entry.compressedSize);
+        input[entry.compressedSize] = 0;
+
+        final Inflater inflater = threadBuffers.inflater;
+        inflater.reset();
+        inflater.setInput(input, 0, entry.compressedSize + 1);
+        try {
+            int position = 0;
+            while (position < entry.size) {
+                final int count = inflater.inflate(output, position, entry.size - position);
+                if (count == 0 && (inflater.finished() || inflater.needsInput() || inflater.needsDictionary()))
+                    break;
+                position += count;
+            }
+
+            if (position != entry.size)
+                throw new ZipException("Invalid size of entry " + entry + " in " + name + ", expected " + entry.size + ", got " + position);
+        } catch (DataFormatException e) {
+            throw new ZipException("Corrupted entry " + entry + " in " + name + ": " + e.getMessage());
+        }
+    }
+
+    @Override
+    public void close() {
+        if (!closed) {
+            closed = true;
+            MappedBuffers.unmap(buffer);
+        }
+    }
+}
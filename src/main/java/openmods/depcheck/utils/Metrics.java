@@ -0,0 +1,370 @@
+package openmods.depcheck.utils;
+
+import java.io.*;
+import java.lang.management.ManagementFactory;
+import java.lang.management.MemoryPoolMXBean;
+import java.lang.management.MemoryType;
+import java.lang.management.ThreadMXBean;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAccumulator;
+import java.util.concurrent.atomic.LongAdder;
+
+import org.slf4j.Logger;
+
+import com.google.common.base.Charsets;
+import com.google.common.base.Strings;
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheStats;
+import com.google.common.collect.Lists;
+import com.google.common.collect.Maps;
+import com.google.gson.Gson;
+import com.google.gson.GsonBuilder;
+
+/**
+ * Process-wide run metrics: phase timings, throughput, call counters and cache hit rates.
+ * Phases are measured on thread that opened them, so nested phases (like dependency resolution inside target scan) are also included in their parents.
+ */
+public class Metrics {
+
+    private static final Gson GSON = new GsonBuilder().setPrettyPrinting().create();
+
+    private static final ThreadMXBean threadBean = ManagementFactory.getThreadMXBean();
+
+    private static final boolean CPU_TIME_SUPPORTED = threadBean.isCurrentThreadCpuTimeSupported() && threadBean.isThreadCpuTimeEnabled();
+
+    private static final AtomicLong phaseCounter = new AtomicLong();
+
+    private static class PhaseStats {
+        // creation order, used to list phases in order of first use
+        private final long order = phaseCounter.getAndIncrement();
+        private final LongAdder count = new LongAdder();
+        private final LongAdder wallNanos = new LongAdder();
+        private final LongAdder cpuNanos = new LongAdder();
+        private final LongAdder classes = new LongAdder();
+        private final LongAdder bytes = new LongAdder();
+        private final LongAccumulator firstStart = new LongAccumulator(Math::min, Long.MAX_VALUE);
+        private final LongAccumulator lastEnd = new LongAccumulator(Math::max, Long.MIN_VALUE);
+
+        // per item (i.e. jar) stats, only for top-level phase stats
+        private final ConcurrentMap<String, PhaseStats> items = Maps.newConcurrentMap();
+
+        private void add(long start, long end, long cpu, long classes, long bytes) {
+            this.count.increment();
+            this.wallNanos.add(end - start);
+            this.cpuNanos.add(cpu);
+            this.classes.add(classes);
+            this.bytes.add(bytes);
+            this.firstStart.accumulate(start);
+            this.lastEnd.accumulate(end);
+        }
+
+        // time from first start to last end, differs from summed wall time when phase runs on many threads
+        private long getElapsedNanos() {
+            return count.sum() > 0 ? lastEnd.get() - firstStart.get() : 0;
+        }
+    }
+
+    /**
+     * Running phase, ended in {@code finally} block:
+     * <pre>final Metrics.Phase phase = Metrics.start("name");
+     *try {
+     *    ...
+     *} finally {
+     *    phase.end();
+     *}</pre>
+     */
+    public static class Phase {
+        private final PhaseStats stats;
+
+        private final PhaseStats itemStats;
+
+        private final Phase parent;
+
+        private final long startWall;
+
+        private final long startCpu;
+
+        private long classes;
+
+        private long bytes;
+
+        private Phase(PhaseStats stats, PhaseStats itemStats, Phase parent) {
+            this.stats = stats;
+            this.itemStats = itemStats;
+            this.parent = parent;
+            this.startCpu = getCpuTime();
+            this.startWall = System.nanoTime();
+        }
+
+        public void end() {
+            final long endWall = System.nanoTime();
+            final long cpu = getCpuTime() - startCpu;
+            stats.add(startWall, endWall, cpu, classes, bytes);
+            if (itemStats != null)
+                itemStats.add(startWall, endWall, cpu, classes, bytes);
+            currentPhase.set(parent);
+        }
+    }
+
+    private interface CacheSource {
+        public CacheStats getStats();
+
+        public void reset();
+    }
+
+    // for lookups memoized without Guava cache
+    public static class CacheCounter implements CacheSource {
+        private final LongAdder requests = new LongAdder();
+
+        private final LongAdder misses = new LongAdder();
+
+        public void request() {
+            requests.increment();
+        }
+
+        public void miss() {
+            misses.increment();
+        }
+
+        @Override
+        public CacheStats getStats() {
+            final long missCount = misses.sum();
+            return new CacheStats(requests.sum() - missCount, missCount, 0, 0, 0, 0);
+        }
+
+        @Override
+        public void reset() {
+            requests.reset();
+            misses.reset();
+        }
+    }
+
+    // Guava stats can't be reset, so stats are reported relative to snapshot taken on reset
+    private static class GuavaCacheSource implements CacheSource {
+        private final Cache<?, ?> cache;
+
+        private volatile CacheStats baseline;
+
+        private GuavaCacheSource(Cache<?, ?> cache) {
+            this.cache = cache;
+            this.baseline = cache.stats();
+        }
+
+        @Override
+        public CacheStats getStats() {
+            return cache.stats().minus(baseline);
+        }
+
+        @Override
+        public void reset() {
+            baseline = cache.stats();
+        }
+    }
+
+    private static final ConcurrentMap<String, PhaseStats> phases = Maps.newConcurrentMap();
+
+    private static final Map<String, LongAdder> counters = Collections.synchronizedMap(Maps.newLinkedHashMap());
+
+    private static final Map<String, CacheSource> caches = Collections.synchronizedMap(Maps.newLinkedHashMap());
+
+    private static final ThreadLocal<Phase> currentPhase = new ThreadLocal<>();
+
+    private static volatile long runStart = System.nanoTime();
+
+    private static long getCpuTime() {
+        return CPU_TIME_SUPPORTED ? threadBean.getCurrentThreadCpuTime() : 0;
+    }
+
+    public static Phase start(String phase) {
+        return start(phase, null);
+    }
+
+    /**
+     * Starts measurement of phase on current thread. Classes recorded on this thread until phase is ended are attributed to it.
+     * @param item optional name of processed item (i.e. jar file), stats are also kept per item
+     */
+    public static Phase start(String phase, String item) {
+        final PhaseStats stats = phases.computeIfAbsent(phase, k -> new PhaseStats());
+        final PhaseStats itemStats = item != null ? stats.items.computeIfAbsent(item, k -> new PhaseStats()) : null;
+        final Phase result = new Phase(stats, itemStats, currentPhase.get());
+        currentPhase.set(result);
+        return result;
+    }
+
+    public static void recordClass(int bytes) {
+        final Phase phase = currentPhase.get();
+        if (phase != null) {
+            phase.classes++;
+            phase.bytes += bytes;
+        }
+    }
+
+    // counters are kept when metrics are reset, so can be stored in static fields
+    public static LongAdder counter(String name) {
+        return counters.computeIfAbsent(name, k -> new LongAdder());
+    }
+
+    public static CacheCounter cacheCounter(String name) {
+        return (CacheCounter)caches.computeIfAbsent(name, k -> new CacheCounter());
+    }
+
+    /**
+     * Reports hit rate of Guava cache, which must be built with {@link com.google.common.cache.CacheBuilder#recordStats()}.
+     */
+    public static void registerCache(String name, Cache<?, ?> cache) {
+        caches.put(name, new GuavaCacheSource(cache));
+    }
+
+    private static List<MemoryPoolMXBean> getHeapPools() {
+        final List<MemoryPoolMXBean> result = Lists.newArrayList();
+        for (MemoryPoolMXBean pool : ManagementFactory.getMemoryPoolMXBeans())
+            if (pool.getType() == MemoryType.HEAP && pool.isValid())
+                result.add(pool);
+        return result;
+    }
+
+    // sum of peaks of heap pools, may be slightly higher than real peak, since pools don't have to peak at same time
+    private static long getPeakHeap() {
+        long result = 0;
+        for (MemoryPoolMXBean pool : getHeapPools())
+            result += pool.getPeakUsage().getUsed();
+        return result;
+    }
+
+    public static void reset() {
+        phases.clear();
+        synchronized (counters) {
+            counters.values().forEach(LongAdder::reset);
+        }
+        synchronized (caches) {
+            caches.values().forEach(CacheSource::reset);
+        }
+        getHeapPools().forEach(MemoryPoolMXBean::resetPeakUsage);
+        runStart = System.nanoTime();
+    }
+
+    private static class PhaseSummary {
+        public String name;
+        public long count;
+        public double elapsedMs;
+        public double wallMs;
+        public double cpuMs;
+        public long classes;
+        public long bytes;
+        public double classesPerSecond;
+        public double bytesPerSecond;
+        public List<PhaseSummary> items;
+
+        private PhaseSummary(String name, PhaseStats stats) {
+            this.name = name;
+            this.count = stats.count.sum();
+            final long elapsedNanos = stats.getElapsedNanos();
+            this.elapsedMs = nanosToMillis(elapsedNanos);
+            this.wallMs = nanosToMillis(stats.wallNanos.sum());
+            this.cpuMs = nanosToMillis(stats.cpuNanos.sum());
+            this.classes = stats.classes.sum();
+            this.bytes = stats.bytes.sum();
+            if (elapsedNanos > 0) {
+                final double seconds = elapsedNanos / (double)TimeUnit.SECONDS.toNanos(1);
+                this.classesPerSecond = classes / seconds;
+                this.bytesPerSecond = bytes / seconds;
+            }
+        }
+    }
+
+    private static class CacheSummary {
+        public String name;
+        public long requests;
+        public long misses;
+        public double hitRate;
+    }
+
+    private static class Summary {
+        public double totalMs;
+        public long peakHeapBytes;
+        public List<PhaseSummary> phases = Lists.newArrayList();
+        public Map<String, Long> counters = Maps.newLinkedHashMap();
+        public List<CacheSummary> caches = Lists.newArrayList();
+    }
+
+    private static double nanosToMillis(long nanos) {
+        return nanos / (double)TimeUnit.MILLISECONDS.toNanos(1);
+    }
+
+    private static List<Map.Entry<String, PhaseStats>> sortedByOrder(Map<String, PhaseStats> stats) {
+        final List<Map.Entry<String, PhaseStats>> result = Lists.newArrayList(stats.entrySet());
+        result.sort(Comparator.comparingLong(e -> e.getValue().order));
+        return result;
+    }
+
+    private static Summary createSummary() {
+        final Summary result = new Summary();
+        result.totalMs = nanosToMillis(System.nanoTime() - runStart);
+        result.peakHeapBytes = getPeakHeap();
+
+        for (Map.Entry<String, PhaseStats> e : sortedByOrder(phases)) {
+            final PhaseSummary phase = new PhaseSummary(e.getKey(), e.getValue());
+            final Map<String, PhaseStats> items = e.getValue().items;
+            if (!items.isEmpty()) {
+                phase.items = Lists.newArrayList();
+                for (Map.Entry<String, PhaseStats> item : sortedByOrder(items))
+                    phase.items.add(new PhaseSummary(item.getKey(), item.getValue()));
+            }
+            result.phases.add(phase);
+        }
+
+        synchronized (counters) {
+            for (Map.Entry<String, LongAdder> e : counters.entrySet())
+                result.counters.put(e.getKey(), e.getValue().sum());
+        }
+
+        synchronized (caches) {
+            for (Map.Entry<String, CacheSource> e : caches.entrySet()) {
+                final CacheStats stats = e.getValue().getStats();
+                final CacheSummary cache = new CacheSummary();
+                cache.name = e.getKey();
+                cache.requests = stats.requestCount();
+                cache.misses = stats.missCount();
+                cache.hitRate = cache.requests > 0 ? stats.hitRate() : 0;
+                result.caches.add(cache);
+            }
+        }
+
+        return result;
+    }
+
+    public static void printSummary(Logger logger) {
+        final Summary summary = createSummary();
+        final StringBuilder table = new StringBuilder();
+        table.append(String.format("%n%-24s %8s %10s %10s %10s %10s %10s %10s %8s",
+                "phase", "count", "elapsed ms", "wall ms", "cpu ms", "classes", "MB", "classes/s", "MB/s"));
+        for (PhaseSummary phase : summary.phases)
+            table.append(String.format("%n%-24s %8d %10.1f %10.1f %10.1f %10d %10.2f %10.0f %8.2f",
+                    phase.name, phase.count, phase.elapsedMs, phase.wallMs, phase.cpuMs,
+                    phase.classes, phase.bytes / 1048576.0, phase.classesPerSecond, phase.bytesPerSecond / 1048576.0));
+
+        for (Map.Entry<String, Long> counter : summary.counters.entrySet())
+            table.append(String.format("%n%-24s %8d", counter.getKey(), counter.getValue()));
+
+        for (CacheSummary cache : summary.caches)
+            table.append(String.format("%n%-24s %8d requests, %d misses, %.1f%% hit rate", cache.name, cache.requests, cache.misses, cache.hitRate * 100));
+
+        table.append(String.format("%n%s%n%-24s %8.1f ms, peak heap %.1f MB", Strings.repeat("-", 24), "total", summary.totalMs, summary.peakHeapBytes / 1048576.0));
+        logger.info("Run metrics:{}", table);
+    }
+
+    public static void writeJson(File file) {
+        try (OutputStream output = new FileOutputStream(file);
+                Writer writer = new OutputStreamWriter(output, Charsets.UTF_8)) {
+            GSON.toJson(createSummary(), writer);
+        } catch (IOException e) {
+            throw new RuntimeException(String.format("Failed to write metrics to %s", file.getAbsolutePath()), e);
+        }
+    }
+}
@@ -0,0 +1,76 @@
+package openmods.depcheck.utils;
+
+import java.nio.charset.StandardCharsets;
+import java.util.Collection;
+
+/**
+ * Cheap check on raw constant pool of class, used to skip classes that can't reference any of given packages.
+ * Prefix is searched in every UTF8 entry, at start and after every 'L' (descriptors), so all class names that could be matched are covered.
+ */
+public class PackagePrefilter {
+
+    private final byte[][] prefixes;
+
+    private final boolean[] firstBytes = new boolean[256];
+
+    private final boolean matchAll;
+
+    public PackagePrefilter(Collection<String> packagePrefixes) {
+        this.prefixes = new byte[packagePrefixes.size()][];
+
+        boolean matchAll = false;
+        int i = 0;
+        for (String prefix : packagePrefixes) {
+            final byte[] internalPrefix = prefix.replace('.', '/').getBytes(StandardCharsets.UTF_8);
+            if (internalPrefix.length == 0)
+                matchAll = true;
+            else
+                firstBytes[internalPrefix[0] & 0xFF] = true;
+            prefixes[i++] = internalPrefix;
+        }
+
+        this.matchAll = matchAll;
+    }
+
+    private boolean matchesAt(byte[] data, int pos, int end) {
+        if (!firstBytes[data[pos] & 0xFF])
+            return false;
+
+        for (byte[] prefix : prefixes) {
+            if (pos + prefix.length > end)
+                continue;
+
+            int i = 0;
+            while (i < prefix.length && data[pos + i] == prefix[i])
+                i++;
+
+            if (i == prefix.length)
+                return true;
+        }
+
+        return false;
+    }
+
+    public boolean mayReference(ClassFile cls) {
+        if (matchAll)
+            return true;
+
+        final byte[] data = cls.getData();
+        final int count = cls.getConstantCount();
+        for (int index = 1; index < count; index++) {
+            if (cls.getTag(index) != ClassFile.CONSTANT_UTF8)
+                continue;
+
+            final int start = cls.getUtf8Offset(index);
+            final int end = start + cls.getUtf8Length(index);
+            if (start < end && matchesAt(data, start, end))
+                return true;
+
+            for (int pos = start; pos < end - 1; pos++)
+                if (data[pos] == 'L' && matchesAt(data, pos + 1, end))
+                    return true;
+        }
+
+        return false;
+    }
+}
@@ -0,0 +1,40 @@
+package openmods.depcheck.utils;
+
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import com.google.common.base.Throwables;
+import com.google.common.collect.Lists;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+
+public class ParallelExecutor {
+
+    public static void runAll(String name, int parallelism, List<? extends Runnable> jobs) {
+        if (parallelism <= 1 || jobs.size() <= 1) {
+            jobs.forEach(Runnable::run);
+            return;
+        }
+
+        final ExecutorService executor = Executors.newFixedThreadPool(Math.min(parallelism, jobs.size()),
+                new ThreadFactoryBuilder().setNameFormat(name + "-%d").setDaemon(true).build());
+        try {
+            final List<Future<?>> futures = Lists.newArrayList();
+            for (Runnable job : jobs)
+                futures.add(executor.submit(job));
+
+            for (Future<?> future : futures)
+                future.get();
+        } catch (ExecutionException e) {
+            throw Throwables.propagate(e.getCause());
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new RuntimeException("Interrupted while waiting for " + name + " jobs", e);
+        } finally {
+            executor.shutdownNow();
+        }
+    }
+
+}
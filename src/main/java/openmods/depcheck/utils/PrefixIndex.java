@@ -0,0 +1,80 @@
+package openmods.depcheck.utils;
+
+import java.util.Arrays;
+
+public class PrefixIndex<T> {
+
+    private static final char[] NO_KEYS = new char[0];
+    private static final Node[] NO_CHILDREN = new Node[0];
+
+    private static class Node {
+        // sorted, binary searched - most nodes have one or two children
+        private char[] keys = NO_KEYS;
+        private Node[] children = NO_CHILDREN;
+        private Object value;
+
+        private Node get(char key) {
+            final int index = Arrays.binarySearch(keys, key);
+            return index >= 0 ? children[index] : null;
+        }
+
+        private Node getOrCreate(char key) {
+            final int index = Arrays.binarySearch(keys, key);
+            if (index >= 0)
+                return children[index];
+
+            final int insertionPoint = -(index + 1);
+            final Node result = new Node();
+
+            final char[] newKeys = new char[keys.length + 1];
+            System.arraycopy(keys, 0, newKeys, 0, insertionPoint);
+            System.arraycopy(keys, insertionPoint, newKeys, insertionPoint + 1, keys.length - insertionPoint);
+            newKeys[insertionPoint] = key;
+
+            final Node[] newChildren = new Node[children.length + 1];
+            System.arraycopy(children, 0, newChildren, 0, insertionPoint);
+            System.arraycopy(children, insertionPoint, newChildren, insertionPoint + 1, children.length - insertionPoint);
+            newChildren[insertionPoint] = result;
+
+            keys = newKeys;
+            children = newChildren;
+            return result;
+        }
+    }
+
+    private final Node root = new Node();
+
+    /**
+     * @return false if prefix was already present (previous value is kept)
+     */
+    public boolean put(String prefix, T value) {
+        Node node = root;
+        for (int i = 0; i < prefix.length(); i++)
+            node = node.getOrCreate(prefix.charAt(i));
+
+        if (node.value != null)
+            return false;
+
+        node.value = value;
+        return true;
+    }
+
+    /**
+     * Returns value for longest registered prefix of {@code key}, or null if none matches. Lookup stops on first character that is not present in index.
+     */
+    @SuppressWarnings("unchecked")
+    public T findLongestPrefix(String key) {
+        Node node = root;
+        Object result = node.value;
+        for (int i = 0; i < key.length(); i++) {
+            node = node.get(key.charAt(i));
+            if (node == null)
+                break;
+
+            if (node.value != null)
+                result = node.value;
+        }
+
+        return (T)result;
+    }
+}
@@ -0,0 +1,65 @@
+package openmods.depcheck.utils;
+
+import java.util.List;
+
+import com.google.common.cache.CacheBuilder;
+import com.google.common.cache.CacheLoader;
+import com.google.common.cache.LoadingCache;
+import com.google.common.collect.Interner;
+import com.google.common.collect.Interners;
+import com.google.common.collect.Lists;
+
+/**
+ * Process-wide table of canonical class names, member names and descriptors.
+ * Canonical strings are shared by all mods and targets, internal to java name conversion is done once per name.
+ * Symbols are weakly referenced and conversion caches are bounded, so long-running modes (watch, server) don't accumulate names of removed targets.
+ */
+public class SymbolTable {
+
+    private static final int CACHE_SIZE = 65536;
+
+    private static final Interner<String> symbols = Interners.newWeakInterner();
+
+    // internal (slash separated) name -> canonical java name
+    private static final LoadingCache<String, String> javaNames = CacheBuilder.newBuilder()
+            .maximumSize(CACHE_SIZE)
+            .build(CacheLoader.from(internalName -> intern(internalName.replace('/', '.'))));
+
+    // field or method descriptor -> java names of referenced classes
+    private static final LoadingCache<String, String[]> descriptorClasses = CacheBuilder.newBuilder()
+            .maximumSize(CACHE_SIZE)
+            .build(CacheLoader.from(SymbolTable::scanDescriptor));
+
+    public static String intern(String symbol) {
+        return symbols.intern(symbol);
+    }
+
+    public static String toJavaName(String internalName) {
+        return javaNames.getUnchecked(internalName);
+    }
+
+    /**
+     * Returns java names of all classes referenced by field or method descriptor (including array element types). Result is shared, do not modify.
+     */
+    public static String[] getReferencedClasses(String desc) {
+        return descriptorClasses.getUnchecked(desc);
+    }
+
+    private static String[] scanDescriptor(String desc) {
+        final List<String> result = Lists.newArrayList();
+        final int length = desc.length();
+        int pos = 0;
+        while (pos < length) {
+            if (desc.charAt(pos) == 'L') {
+                final int end = desc.indexOf(';', pos);
+                if (end < 0)
+                    throw new IllegalArgumentException("Invalid descriptor: " + desc);
+                result.add(toJavaName(desc.substring(pos + 1, end)));
+                pos = end + 1;
+            } else {
+                pos++;
+            }
+        }
+        return result.toArray(new String[result.size()]);
+    }
+}
@@ -1,29 +1,69 @@
 package openmods.depcheck.utils;
 
 import java.io.Serializable;
+import java.util.EnumMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentMap;
+
+import com.google.common.collect.MapMaker;
 
 public class TypedElement implements Serializable {
 
     private static final long serialVersionUID = 8206186136037881452L;
 
+    // type -> name -> desc -> canonical instance, lookup of existing element does not allocate
+    // values are weak, so elements of removed mods and targets can be collected; desc maps are kept alive by their elements
+    private static final Map<ElementType, ConcurrentMap<String, ConcurrentMap<String, TypedElement>>> canonicalElements = new EnumMap<>(ElementType.class);
+
+    static {
+        for (ElementType type : ElementType.values())
+            canonicalElements.put(type, new MapMaker().weakValues().makeMap());
+    }
+
     public final ElementType type;
 
     public final String name;
 
     public final String desc;
 
-    public TypedElement(ElementType type, String name, String desc) {
+    private transient int hash;
+
+    // map this instance is stored in, referenced only to keep it from being collected
+    private final transient Map<String, TypedElement> siblings;
+
+    private TypedElement(ElementType type, String name, String desc, Map<String, TypedElement> siblings) {
         this.type = type;
         this.name = name;
         this.desc = desc;
+        this.siblings = siblings;
+    }
+
+    public static TypedElement of(ElementType type, String name, String desc) {
+        final ConcurrentMap<String, TypedElement> descs = canonicalElements.get(type).get(name);
+        if (descs != null) {
+            final TypedElement result = descs.get(desc);
+            if (result != null)
+                return result;
+        }
+
+        return create(type, name, desc);
     }
 
-    public boolean isInClass(Class<?> cls) {
-        return type.isInClass(cls, name, desc);
+    private static TypedElement create(ElementType type, String name, String desc) {
+        final String internedName = SymbolTable.intern(name);
+        final ConcurrentMap<String, TypedElement> descs = canonicalElements.get(type).computeIfAbsent(internedName, k -> new MapMaker().weakValues().makeMap());
+        return descs.computeIfAbsent(SymbolTable.intern(desc), k -> new TypedElement(type, internedName, k, descs));
+    }
+
+    private Object readResolve() {
+        return of(type, name, desc);
     }
 
     @Override
     public boolean equals(final Object o) {
+        if (o == this)
+            return true;
+
         if (o instanceof TypedElement) {
             TypedElement other = (TypedElement)o;
             return this.type.equals(other.type)
@@ -36,7 +76,12 @@ public class TypedElement implements Serializable {
 
     @Override
     public int hashCode() {
-        return type.hashCode() ^ name.hashCode() ^ desc.hashCode();
+        int result = hash;
+        if (result == 0) {
+            result = type.hashCode() ^ name.hashCode() ^ desc.hashCode();
+            hash = result;
+        }
+        return result;
     }
 
     @Override
@@ -0,0 +1,164 @@
+package openmods.depcheck;
+
+import static org.junit.Assert.*;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.*;
+
+import openmods.depcheck.ModInfo.ModRegistrationContext;
+import openmods.depcheck.ModInfo.VersionedClass;
+import openmods.depcheck.utils.ElementType;
+import openmods.depcheck.utils.TypedElement;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import com.google.common.collect.ImmutableSet;
+import com.google.common.collect.Lists;
+import com.google.common.collect.Maps;
+import com.google.common.collect.Sets;
+
+public class ModIndexTest {
+
+    @Rule
+    public TemporaryFolder tmp = new TemporaryFolder();
+
+    private static TypedElement field(String name, String desc) {
+        return TypedElement.of(ElementType.FIELD, name, desc);
+    }
+
+    private static TypedElement method(String name, String desc) {
+        return TypedElement.of(ElementType.METHOD, name, desc);
+    }
+
+    private static ModInfo createMod() {
+        final ModInfo mod = new ModInfo("test.mod", "testmod");
+
+        final ModRegistrationContext v1 = mod.registerVersion("1.0");
+        v1.registerClass("test.mod.Base", null, ImmutableSet.of(), ImmutableSet.of(method("base", "()V"), field("count", "I")));
+        v1.registerClass("test.mod.Api", null, ImmutableSet.of(), ImmutableSet.of(method("call", "(Ljava/lang/String;)Z")));
+        v1.registerClass("test.mod.Impl", "test.mod.Base", ImmutableSet.of("test.mod.Api"), ImmutableSet.of(method("<init>", "()V")));
+
+        // same signatures as 1.0, except for Impl
+        final ModRegistrationContext v2 = mod.registerVersion("1.1");
+        v2.registerClass("test.mod.Base", null, ImmutableSet.of(), ImmutableSet.of(method("base", "()V"), field("count", "I")));
+        v2.registerClass("test.mod.Api", null, ImmutableSet.of(), ImmutableSet.of(method("call", "(Ljava/lang/String;)Z")));
+        v2.registerClass("test.mod.Impl", "test.mod.Base", ImmutableSet.of("test.mod.Api"), ImmutableSet.of(method("<init>", "()V"), method("extra", "(J)V")));
+
+        // Api removed, non-ASCII names to check string table encoding
+        final ModRegistrationContext v3 = mod.registerVersion("2.0");
+        v3.registerClass("test.mod.Base", null, ImmutableSet.of(), ImmutableSet.of(method("base", "()V"), field("z\u00e4hlung", "J")));
+        v3.registerClass("test.mod.Impl", "test.mod.Base", ImmutableSet.of(), ImmutableSet.of(method("<init>", "()V")));
+        v3.registerClass("test.mod.\u65b0", null, ImmutableSet.of(), ImmutableSet.of());
+
+        mod.updateVersionSource("1.1", new JarFingerprint("testmod-1.1.jar", 1234, 5678, "abcdef"));
+        return mod;
+    }
+
+    private File store(ModInfo mod) throws IOException {
+        final File file = tmp.newFile("testmod.idx");
+        try (OutputStream output = new FileOutputStream(file)) {
+            ModIndex.write(mod, output);
+        }
+        return file;
+    }
+
+    // class -> versions mask -> signature description, compared by contents
+    private static Map<String, Map<BitSet, List<Object>>> describe(ModInfo mod) {
+        final Map<String, Map<BitSet, List<Object>>> result = Maps.newTreeMap();
+        mod.forEachClass((clsName, cls) -> {
+            final Map<BitSet, List<Object>> signatures = Maps.newHashMap();
+            cls.forEachSignature((signature, versions) -> signatures.put((BitSet)versions.clone(), Arrays.asList(
+                    signature.getSuperClass(),
+                    ImmutableSet.copyOf(signature.getInterfaces()),
+                    ImmutableSet.copyOf(signature.getElements()))));
+            result.put(clsName, signatures);
+        });
+        return result;
+    }
+
+    private static Map<String, VersionedClass> classes(ModInfo mod) {
+        final Map<String, VersionedClass> result = Maps.newHashMap();
+        mod.forEachClass(result::put);
+        return result;
+    }
+
+    @Test
+    public void testRoundTripMatchesHeapData() throws IOException {
+        final ModInfo heapMod = createMod();
+        try (ModIndex index = ModIndex.open(store(heapMod))) {
+            assertEquals("testmod", index.getModId());
+            assertEquals("test.mod", index.getPkgPrefix());
+            assertEquals(heapMod.versionCount(), index.getVersionCount());
+
+            final ModInfo indexedMod = ModInfo.fromIndex(index);
+            for (int i = 0; i < heapMod.versionCount(); i++) {
+                final String version = heapMod.getVersion(i);
+                assertEquals(version, indexedMod.getVersion(i));
+
+                final JarFingerprint expectedSource = heapMod.getVersionSource(version);
+                final JarFingerprint actualSource = indexedMod.getVersionSource(version);
+                if (expectedSource == null) {
+                    assertNull(actualSource);
+                } else {
+                    assertNotNull(actualSource);
+                    assertEquals(expectedSource.fileName, actualSource.fileName);
+                    assertEquals(expectedSource.size, actualSource.size);
+                    assertEquals(expectedSource.lastModified, actualSource.lastModified);
+                    assertEquals(expectedSource.hash, actualSource.hash);
+                }
+            }
+
+            assertEquals(describe(heapMod), describe(indexedMod));
+
+            final Map<String, VersionedClass> heapClasses = classes(heapMod);
+            final Map<String, VersionedClass> indexedClasses = classes(indexedMod);
+            assertEquals(heapClasses.keySet(), indexedClasses.keySet());
+            for (Map.Entry<String, VersionedClass> e : heapClasses.entrySet()) {
+                final VersionedClass expected = e.getValue();
+                final VersionedClass actual = indexedClasses.get(e.getKey());
+                assertEquals(e.getKey(), expected.getVersions(), actual.getVersions());
+                for (int version = 0; version < heapMod.versionCount(); version++) {
+                    if (expected.getForVersion(version) == null) {
+                        assertNull(actual.getForVersion(version));
+                    } else {
+                        assertEquals(ImmutableSet.copyOf(expected.getForVersion(version).getElements()), ImmutableSet.copyOf(actual.getForVersion(version).getElements()));
+                        for (TypedElement element : expected.getForVersion(version).getElements())
+                            assertTrue(actual.getForVersion(version).hasElement(element));
+                    }
+                }
+            }
+
+            // lookups, including inherited, missing and unknown elements
+            final List<String> queryClasses = Lists.newArrayList(heapClasses.keySet());
+            queryClasses.add("test.mod.Missing");
+            final Set<TypedElement> queryElements = Sets.newHashSet(method("call", "(Ljava/lang/String;)Z"), method("unknown", "()V"), field("base", "()V"));
+            heapMod.forEachClass((clsName, cls) -> cls.forEachSignature((signature, versions) -> queryElements.addAll(signature.getElements())));
+
+            for (String cls : queryClasses) {
+                assertEquals(cls, heapMod.findMatchingVersions(cls), indexedMod.findMatchingVersions(cls));
+                for (TypedElement element : queryElements)
+                    assertEquals(cls + " " + element,
+                            heapMod.findMatchingVersions(cls, element.type, element.name, element.desc),
+                            indexedMod.findMatchingVersions(cls, element.type, element.name, element.desc));
+            }
+        }
+    }
+
+    @Test
+    public void testModificationAfterLoadFromIndex() throws IOException {
+        final ModInfo heapMod = createMod();
+        heapMod.removeVersions(ImmutableSet.of("1.0"));
+
+        try (ModIndex index = ModIndex.open(store(createMod()))) {
+            final ModInfo indexedMod = ModInfo.fromIndex(index);
+            // moves class data to heap and closes index
+            indexedMod.removeVersions(ImmutableSet.of("1.0"));
+            assertEquals(describe(heapMod), describe(indexedMod));
+        }
+    }
+}
@@ -0,0 +1,110 @@
+package openmods.depcheck;
+
+import static org.junit.Assert.*;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.Optional;
+import java.util.Set;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipOutputStream;
+
+import openmods.depcheck.TargetParser.TargetClassVisitor;
+import openmods.depcheck.TargetParser.TargetModContentsVisitor;
+import openmods.depcheck.TargetParser.TargetModVisitor;
+import openmods.depcheck.utils.ElementType;
+import openmods.depcheck.utils.MappedJarFile;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import org.objectweb.asm.ClassReader;
+
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.ImmutableSet;
+import com.google.common.collect.Sets;
+import com.google.common.io.ByteStreams;
+
+public class TargetParserTest {
+
+    @Rule
+    public TemporaryFolder tmp = new TemporaryFolder();
+
+    // classes with varied bytecode: lambdas, inner classes, switches, constants, interfaces, exceptions
+    private static final ImmutableList<Class<?>> FIXTURE_CLASSES = ImmutableList.of(
+            TargetParser.class,
+            ModInfo.class,
+            ModIndex.class,
+            ResultPrinter.class,
+            ResultExporter.class,
+            MappedJarFile.class,
+            ImmutableSet.class,
+            ClassReader.class,
+            TargetParserTest.class);
+
+    private static class CountingVisitor implements TargetModVisitor, TargetModContentsVisitor, TargetClassVisitor {
+        private final Set<String> classes = Sets.newHashSet();
+
+        private int references;
+
+        @Override
+        public TargetModContentsVisitor visitFile(File file) {
+            return this;
+        }
+
+        @Override
+        public synchronized TargetClassVisitor visitClass(String cls) {
+            classes.add(cls);
+            return this;
+        }
+
+        @Override
+        public Optional<TargetClassVisitor> visitClassIfExists(String cls) {
+            return Optional.of(visitClass(cls));
+        }
+
+        @Override
+        public synchronized void visitRequiredClass(String cls) {
+            references++;
+        }
+
+        @Override
+        public synchronized void visitRequiredElement(String cls, ElementType type, String name, String desc) {
+            references++;
+        }
+    }
+
+    private File createFixture() throws IOException {
+        final File topDir = tmp.newFolder("fixture");
+        final File targetsDir = new File(topDir, "targets");
+        targetsDir.mkdirs();
+
+        try (OutputStream os = new FileOutputStream(new File(targetsDir, "fixture.jar"));
+                ZipOutputStream output = new ZipOutputStream(os)) {
+            for (Class<?> cls : FIXTURE_CLASSES) {
+                final String name = cls.getName().replace('.', '/') + ".class";
+                try (InputStream input = cls.getClassLoader().getResourceAsStream(name)) {
+                    output.putNextEntry(new ZipEntry(name));
+                    ByteStreams.copy(input, output);
+                    output.closeEntry();
+                }
+            }
+        }
+
+        return topDir;
+    }
+
+    @Test
+    public void testConstantPoolExtractionMatchesAsm() throws IOException {
+        final TargetParser parser = new TargetParser(createFixture(), 1, TargetParser.ExtractionMode.VERIFY, null);
+        final CountingVisitor visitor = new CountingVisitor();
+        parser.accept(visitor);
+
+        assertEquals(FIXTURE_CLASSES.size(), visitor.classes.size());
+        assertTrue(visitor.references > 0);
+        assertEquals(0, parser.getMismatchCount());
+    }
+}
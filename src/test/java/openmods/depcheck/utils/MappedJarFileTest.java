@@ -0,0 +1,217 @@
+package openmods.depcheck.utils;
+
+import static org.junit.Assert.*;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.Arrays;
+import java.util.Enumeration;
+import java.util.List;
+import java.util.Random;
+import java.util.zip.CRC32;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipException;
+import java.util.zip.ZipFile;
+import java.util.zip.ZipOutputStream;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import com.google.common.base.Charsets;
+import com.google.common.io.ByteStreams;
+import com.google.common.io.Files;
+
+public class MappedJarFileTest {
+
+    @Rule
+    public TemporaryFolder tmp = new TemporaryFolder();
+
+    private static byte[] createContents(Random random, int size, boolean compressible) {
+        final byte[] result = new byte[size];
+        if (compressible) {
+            for (int i = 0; i < size; i++)
+                result[i] = (byte)('a' + (i % 7) + (random.nextInt(8) == 0 ? 1 : 0));
+        } else {
+            random.nextBytes(result);
+        }
+        return result;
+    }
+
+    private static void putEntry(ZipOutputStream output, String name, byte[] contents, int method) throws IOException {
+        final ZipEntry entry = new ZipEntry(name);
+        entry.setMethod(method);
+        if (method == ZipEntry.STORED) {
+            final CRC32 crc = new CRC32();
+            crc.update(contents);
+            entry.setSize(contents.length);
+            entry.setCompressedSize(contents.length);
+            entry.setCrc(crc.getValue());
+        }
+        output.putNextEntry(entry);
+        output.write(contents);
+        output.closeEntry();
+    }
+
+    private File createJar(String name, int entryCount, int method) throws IOException {
+        final Random random = new Random(entryCount * 31 + method);
+        final File file = tmp.newFile(name);
+        try (OutputStream os = new FileOutputStream(file);
+                ZipOutputStream output = new ZipOutputStream(os)) {
+            output.setComment("test jar");
+            putEntry(output, "META-INF/", new byte[0], method);
+            putEntry(output, "META-INF/MANIFEST.MF", "Manifest-Version: 1.0\r\n".getBytes(Charsets.UTF_8), method);
+            putEntry(output, "empty.txt", new byte[0], method);
+            putEntry(output, "\u00fcn\u00efc\u00f6d\u00e9/\u540d\u524d.class", createContents(random, 100, true), method);
+            putEntry(output, "large.bin", createContents(random, 300000, false), method);
+            putEntry(output, "large.txt", createContents(random, 300000, true), method);
+            for (int i = 0; i < entryCount; i++)
+                putEntry(output, "pkg/Class" + i + ".class", createContents(random, random.nextInt(2000), random.nextBoolean()), method);
+        }
+        return file;
+    }
+
+    private static void assertSameAsZipFile(File file) throws IOException {
+        try (ZipFile expected = new ZipFile(file);
+                MappedJarFile actual = new MappedJarFile(file)) {
+            final List<MappedJarFile.Entry> actualEntries = actual.getEntries();
+            assertEquals(expected.size(), actualEntries.size());
+
+            final Enumeration<? extends ZipEntry> expectedEntries = expected.entries();
+            for (MappedJarFile.Entry actualEntry : actualEntries) {
+                final ZipEntry expectedEntry = expectedEntries.nextElement();
+                assertEquals(expectedEntry.getName(), actualEntry.name);
+                assertEquals(expectedEntry.getName(), expectedEntry.isDirectory(), actualEntry.isDirectory());
+                assertEquals(expectedEntry.getName(), expectedEntry.getMethod(), actualEntry.method);
+                assertEquals(expectedEntry.getName(), expectedEntry.getSize(), actualEntry.size);
+                assertEquals(expectedEntry.getName(), expectedEntry.getCompressedSize(), actualEntry.compressedSize);
+
+                final byte[] expectedContents;
+                try (InputStream input = expected.getInputStream(expectedEntry)) {
+                    expectedContents = ByteStreams.toByteArray(input);
+                }
+
+                final byte[] actualContents = Arrays.copyOf(actual.read(actualEntry), actualEntry.size);
+                assertArrayEquals(expectedEntry.getName(), expectedContents, actualContents);
+            }
+        }
+    }
+
+    @Test
+    public void testStoredEntries() throws IOException {
+        assertSameAsZipFile(createJar("stored.jar", 50, ZipEntry.STORED));
+    }
+
+    @Test
+    public void testDeflatedEntries() throws IOException {
+        assertSameAsZipFile(createJar("deflated.jar", 50, ZipEntry.DEFLATED));
+    }
+
+    @Test
+    public void testZip64EntryCount() throws IOException {
+        // more than 65535 entries forces zip64 end of central directory
+        assertSameAsZipFile(createJar("zip64.jar", 70000, ZipEntry.DEFLATED));
+    }
+
+    @Test
+    public void testInMemoryArchive() throws IOException {
+        final File file = createJar("memory.jar", 10, ZipEntry.DEFLATED);
+        try (MappedJarFile mapped = new MappedJarFile(file);
+                MappedJarFile inMemory = new MappedJarFile("memory.jar", Files.toByteArray(file))) {
+            assertEquals(mapped.getEntries().size(), inMemory.getEntries().size());
+            for (int i = 0; i < mapped.getEntries().size(); i++) {
+                final MappedJarFile.Entry entry = mapped.getEntries().get(i);
+                final byte[] expected = Arrays.copyOf(mapped.read(entry), entry.size);
+                final byte[] actual = Arrays.copyOf(inMemory.read(inMemory.getEntries().get(i)), entry.size);
+                assertArrayEquals(entry.name, expected, actual);
+            }
+        }
+    }
+
+    @Test
+    public void testTruncatedJar() throws IOException {
+        final byte[] data = Files.toByteArray(createJar("full.jar", 50, ZipEntry.DEFLATED));
+        for (int cut : new int[] { 30, 100, 5000, data.length / 2, data.length - 10 }) {
+            final byte[] truncated = Arrays.copyOf(data, data.length - cut);
+
+            final File file = tmp.newFile("truncated" + cut + ".jar");
+            Files.write(truncated, file);
+            try {
+                new ZipFile(file).close();
+                fail("Jar truncated by " + cut + " bytes accepted by ZipFile");
+            } catch (ZipException e) {
+                // expected, MappedJarFile must behave same
+            }
+
+            try {
+                new MappedJarFile("truncated.jar", truncated).close();
+                fail("Jar truncated by " + cut + " bytes accepted");
+            } catch (ZipException e) {
+                // expected
+            }
+
+            try {
+                new MappedJarFile(file).close();
+                fail("Jar truncated by " + cut + " bytes accepted");
+            } catch (ZipException e) {
+                // expected
+            }
+        }
+    }
+
+    private static int indexOf(byte[] data, byte[] pattern, int from) {
+        outer: for (int i = from; i <= data.length - pattern.length; i++) {
+            for (int j = 0; j < pattern.length; j++)
+                if (data[i + j] != pattern[j])
+                    continue outer;
+            return i;
+        }
+        return -1;
+    }
+
+    private static MappedJarFile.Entry findEntry(MappedJarFile jar, String name) {
+        return jar.getEntries().stream().filter(e -> e.name.equals(name)).findFirst().get();
+    }
+
+    @Test(expected = ZipException.class)
+    public void testEntryPastEndOfData() throws IOException {
+        final byte[] data = Files.toByteArray(createJar("full.jar", 50, ZipEntry.DEFLATED));
+        final byte[] name = "large.bin".getBytes(Charsets.UTF_8);
+
+        // second occurrence of name is in central directory, compressed size field is 26 bytes before it
+        final int centralName = indexOf(data, name, indexOf(data, name, 0) + 1);
+        final int sizeOffset = centralName - 46 + 20;
+        data[sizeOffset] = (byte)0xF0;
+        data[sizeOffset + 1] = (byte)0xFF;
+        data[sizeOffset + 2] = (byte)0xFF;
+        data[sizeOffset + 3] = (byte)0x7F;
+
+        try (MappedJarFile jar = new MappedJarFile("broken.jar", data)) {
+            jar.read(findEntry(jar, "large.bin"));
+        }
+    }
+
+    @Test(expected = ZipException.class)
+    public void testCorruptedEntryData() throws IOException {
+        final byte[] data = Files.toByteArray(createJar("full.jar", 50, ZipEntry.DEFLATED));
+        try (MappedJarFile jar = new MappedJarFile("corrupted.jar", data)) {
+            final MappedJarFile.Entry entry = findEntry(jar, "large.txt");
+
+            // entries are written without extra fields, so data follows name in local header
+            final int dataStart = indexOf(data, "large.txt".getBytes(Charsets.UTF_8), 0) + "large.txt".length();
+            Arrays.fill(data, dataStart, dataStart + entry.compressedSize, (byte)0xFF);
+            jar.read(entry);
+        }
+    }
+
+    @Test(expected = IOException.class)
+    public void testReadAfterClose() throws IOException {
+        final MappedJarFile jar = new MappedJarFile(createJar("closed.jar", 1, ZipEntry.DEFLATED));
+        final MappedJarFile.Entry entry = jar.getEntries().get(1);
+        jar.close();
+        jar.read(entry);
+    }
+}